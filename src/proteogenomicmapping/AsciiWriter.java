@@ -0,0 +1,262 @@
+package proteogenomicmapping;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes text, numbers and translated sequences as ASCII straight into a
+ * byte buffer which is reused, and which is written to a file channel when
+ * it is full, so writing the output does not build a string for every field.
+ *
+ * Like PrintWriter, the print methods do not throw; an error writing the
+ * file is kept, see checkError.  Characters outside ASCII are written in the
+ * default encoding, as PrintWriter writes them.
+ * @author Brandon
+ */
+public class AsciiWriter {
+
+    // <editor-fold defaultstate="collapsed" desc="Fields">
+    /**
+     * the size of the buffer of a file
+     */
+    public static final int bufferSize = 1 << 16;
+
+    /**
+     * the end of a line, as PrintWriter.println writes it
+     */
+    protected static final byte[] lineSeparator = System.getProperty("line.separator").getBytes();
+
+    /**
+     * the text which has not been written to the file yet, and the buffer
+     * around it, through which it is written
+     */
+    protected byte[] bytes;
+    protected int length;
+    protected ByteBuffer buffer;
+
+    /**
+     * the file
+     */
+    protected FileChannel channel;
+
+    /**
+     * true if writing to the file failed
+     */
+    protected boolean error;
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Constructors">
+    /**
+     * write the text to the file, which is created or emptied
+     * @param filename the path of the file
+     */
+    public AsciiWriter(String filename) throws IOException {
+        this.channel = new FileOutputStream(filename).getChannel();
+        this.bytes = new byte[bufferSize];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Print Methods">
+    /**
+     * print the characters of the sequence
+     */
+    public void print(CharSequence sequence) {
+        print(sequence, 0, sequence.length());
+    }
+
+    /**
+     * print the characters of part of the sequence, copied straight from the
+     * buffer of a ByteSequence or StrandSequence
+     * @param sequence the sequence
+     * @param start the first character to print
+     * @param end the position after the last character to print
+     */
+    public void print(CharSequence sequence, int start, int end) {
+        boolean bytesOnly = sequence instanceof ByteSequence || sequence instanceof StrandSequence;
+        for(int i = start; i < end; ) {
+            int count = reserve(end - i);
+            if(bytesOnly) {
+                ByteSequence.getBytes(sequence, i, i + count, bytes, length);
+            }
+            for(int stop = i + count; i < stop; i++) {
+                char character = bytesOnly ? (char)(bytes[length] & 0xFF) : sequence.charAt(i);
+                if(character >= 128) {
+                    byte[] encoded = sequence.subSequence(i, end).toString().getBytes();
+                    write(encoded, 0, encoded.length);
+                    return;
+                }
+                bytes[length++] = (byte)character;
+            }
+        }
+    }
+
+    public void print(char character) {
+        if(character >= 128) {
+            print(String.valueOf(character));
+            return;
+        }
+        reserve(1);
+        bytes[length++] = (byte)character;
+    }
+
+    /**
+     * print the decimal digits of the number, as Long.toString
+     */
+    public void print(long value) {
+        if(value == Long.MIN_VALUE) {
+            print(Long.toString(value));
+            return;
+        }
+        if(value < 0) {
+            print('-');
+            value = -value;
+        }
+        int digits = 1;
+        for(long rest = value; rest >= 10; rest /= 10) {
+            digits++;
+        }
+        reserve(digits);
+        for(int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * print the number as Double.toString
+     */
+    public void print(double value) {
+        print(Double.toString(value));
+    }
+
+    /**
+     * print a field of a tab separated line, followed by the tab
+     */
+    public void printField(CharSequence sequence) {
+        print(sequence);
+        print('\t');
+    }
+
+    public void printField(long value) {
+        print(value);
+        print('\t');
+    }
+
+    public void printField(double value) {
+        print(value);
+        print('\t');
+    }
+
+    public void println() {
+        write(lineSeparator, 0, lineSeparator.length);
+    }
+
+    public void println(CharSequence sequence) {
+        print(sequence);
+        println();
+    }
+
+    /**
+     * print the translation of the DNA sequence, the same as
+     * Translator.translateSequence, without making the protein sequence
+     * @param translator the translator with the codon table
+     * @param sequence the DNA sequence, all upper case
+     */
+    public void printTranslation(Translator translator, CharSequence sequence) {
+        printTranslation(translator, sequence, 0, sequence.length());
+    }
+
+    /**
+     * print the translation of part of the DNA sequence
+     * @param start the first nucleotide to translate
+     * @param end the position after the last nucleotide to translate
+     * the other parameters are the same as above
+     */
+    public void printTranslation(Translator translator, CharSequence sequence, int start, int end) {
+        int codons = (end - start) / 3;
+        for(int codon = 0; codon < codons; ) {
+            int count = reserve(codons - codon);
+            for(int stop = codon + count; codon < stop; codon++) {
+                int position = start + 3 * codon;
+                int first = translator.getNucleotideMask(sequence.charAt(position));
+                int second = translator.getNucleotideMask(sequence.charAt(position + 1));
+                int third = translator.getNucleotideMask(sequence.charAt(position + 2));
+                bytes[length++] = translator.aminoAcidBytes[(first << 8) | (second << 4) | third];
+            }
+        }
+    }
+
+    /**
+     * write the bytes as they are
+     */
+    public void write(byte[] source, int offset, int count) {
+        while(count > 0) {
+            int part = reserve(count);
+            System.arraycopy(source, offset, bytes, length, part);
+            length += part;
+            offset += part;
+            count -= part;
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Buffer Methods">
+    /**
+     * make room in the buffer, writing it to the file
+     * @param count the number of bytes wanted
+     * @return the number of bytes (at least 1) which fit in the buffer now
+     */
+    protected int reserve(int count) {
+        if(length + count > bytes.length) {
+            flushBuffer();
+        }
+        return Math.min(count, bytes.length - length);
+    }
+
+    /**
+     * write the buffer to the file and empty it
+     */
+    protected void flushBuffer() {
+        try {
+            buffer.clear();
+            buffer.limit(length);
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            error = true;
+        }
+        length = 0;
+    }
+
+    /**
+     * write the text to the file
+     */
+    public void flush() {
+        flushBuffer();
+    }
+
+    /**
+     * write the text to the file, and close it
+     */
+    public void close() {
+        flushBuffer();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            error = true;
+        }
+    }
+
+    /**
+     * @return true if writing to the file failed
+     */
+    public boolean checkError() {
+        return error;
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,118 @@
+package proteogenomicmapping;
+
+/**
+ * A sequence of ASCII characters held in a byte array which is reused from
+ * one sequence to the next, so that translating a reference does not
+ * allocate a new string for every reading frame
+ * @author Brandon
+ */
+public class ByteSequence implements CharSequence {
+
+    // <editor-fold defaultstate="collapsed" desc="Fields">
+    protected byte[] bytes;
+    protected int length;
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Constructors">
+    public ByteSequence() {
+        this(16);
+    }
+
+    public ByteSequence(int capacity) {
+        bytes = new byte[Math.max(capacity, 1)];
+        length = 0;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Buffer Methods">
+    /**
+     * make sure the buffer can hold the given number of characters, the
+     * characters already in the buffer are not kept
+     * @param capacity the number of characters
+     * @return the buffer
+     */
+    public byte[] getBuffer(int capacity) {
+        if(bytes.length < capacity) {
+            bytes = new byte[Math.max(capacity, bytes.length * 2)];
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the buffer, which holds length characters
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * set the number of characters of the buffer which are in the sequence
+     */
+    public void setLength(int length) {
+        this.length = length;
+    }
+
+    /**
+     * replace the sequence with the given (ASCII) characters
+     * @param sequence the characters to copy
+     */
+    public void set(CharSequence sequence) {
+        int sequenceLength = sequence.length();
+        byte[] buffer = getBuffer(sequenceLength);
+        for(int i = 0; i < sequenceLength; i++) {
+            buffer[i] = (byte)sequence.charAt(i);
+        }
+        length = sequenceLength;
+    }
+
+    /**
+     * copy characters of a sequence into a byte array, straight from the
+     * buffer of a ByteSequence or StrandSequence
+     * @param sequence the sequence of (ASCII) characters
+     * @param start the first character to copy
+     * @param end the position after the last character to copy
+     * @param destination the byte array
+     * @param offset the position of the first character in destination
+     */
+    public static void getBytes(CharSequence sequence, int start, int end, byte[] destination, int offset) {
+        if(sequence instanceof ByteSequence) {
+            System.arraycopy(((ByteSequence)sequence).bytes, start, destination, offset, end - start);
+        } else if(sequence instanceof StrandSequence) {
+            ((StrandSequence)sequence).getBytes(start, end, destination, offset);
+        } else {
+            for(int i = start; i < end; i++) {
+                destination[offset++] = (byte)sequence.charAt(i);
+            }
+        }
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="CharSequence Methods">
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int index) {
+        if(index >= length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length);
+        }
+        return (char)(bytes[index] & 0xFF);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        if(start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Start: " + start + ", End: " + end + ", Length: " + length);
+        }
+        char[] characters = new char[end - start];
+        for(int i = start; i < end; i++) {
+            characters[i - start] = (char)(bytes[i] & 0xFF);
+        }
+        return new String(characters);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length).toString();
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,97 @@
+package proteogenomicmapping;
+
+/**
+ * The positions of the start and stop codons of a reference, sorted and
+ * kept apart for each of the three reading frames, so that the nearest
+ * in-frame codon before or after a position is found by a binary search
+ * rather than by stepping through the open reading frame codon by codon.
+ *
+ * The index is filled from the codon marks of Translator.markCodons, and
+ * its lists are reused for every reference indexed.
+ * @author Brandon
+ */
+public class CodonIndex {
+
+    // <editor-fold defaultstate="collapsed" desc="Fields">
+    /**
+     * the positions of the start and stop codons, by position % 3
+     */
+    protected IntList[] starts = new IntList[3];
+    protected IntList[] stops = new IntList[3];
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Constructors">
+    public CodonIndex() {
+        for(int frame = 0; frame < 3; frame++) {
+            starts[frame] = new IntList();
+            stops[frame] = new IntList();
+        }
+    }
+    // </editor-fold>
+
+    /**
+     * index the codons of a reference, replacing the last reference indexed
+     * @param marks the codon marks of the reference (see Translator.markCodons)
+     * @param length the length of the reference
+     */
+    public void index(byte[] marks, int length) {
+        for(int frame = 0; frame < 3; frame++) {
+            starts[frame].clear();
+            stops[frame].clear();
+        }
+        for(int i = 0; i < length; i++) {
+            if((marks[i] & Translator.startCodon) != 0) {
+                starts[i % 3].add(i);
+            }
+            if((marks[i] & Translator.stopCodon) != 0) {
+                stops[i % 3].add(i);
+            }
+        }
+    }
+
+    /**
+     * @param codonClass Translator.startCodon or Translator.stopCodon
+     * @param position a position (at least 0) of the reference
+     * @return the last codon of the class beginning at or before position,
+     * in the reading frame of position, or -1 if there is none
+     */
+    public int previous(byte codonClass, int position) {
+        IntList positions = getPositions(codonClass, position);
+        int index = search(positions, position + 1) - 1;
+        return index >= 0 ? positions.values[index] : -1;
+    }
+
+    /**
+     * @param codonClass Translator.startCodon or Translator.stopCodon
+     * @param position a position (at least 0) of the reference
+     * @return the first codon of the class beginning at or after position,
+     * in the reading frame of position, or -1 if there is none
+     */
+    public int next(byte codonClass, int position) {
+        IntList positions = getPositions(codonClass, position);
+        int index = search(positions, position);
+        return index < positions.size ? positions.values[index] : -1;
+    }
+
+    protected IntList getPositions(byte codonClass, int position) {
+        return (codonClass == Translator.startCodon ? starts : stops)[position % 3];
+    }
+
+    /**
+     * @return the index of the first position in the sorted positions which
+     * is at least the given position, or the size if there is none
+     */
+    protected static int search(IntList positions, int position) {
+        int low = 0;
+        int high = positions.size;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(positions.values[middle] < position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -4,6 +4,8 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -53,6 +55,49 @@ public class FASTASequenceReader implements Iterator<BioSequence> {
         return null;
     }
 
+    /**
+     * read the next sequence without holding it in memory, for a sequence
+     * which is too long to hold (see Mapper.setWindowLength).  the residues
+     * are written to the channel, one byte each, without the line breaks
+     * @param channel receives the residues, from its current position
+     * @return the identifier of the sequence
+     */
+    public String next(FileChannel channel) throws IOException {
+        // assume line is not null and pointing to the identifier line (">Sequence ID");
+        String id = currentLine.substring(1);
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        for (currentLine = sequenceFile.readLine();
+            currentLine != null && !currentLine.startsWith(">");
+            currentLine = sequenceFile.readLine()) {
+
+            for(int i = 0; i < currentLine.length(); i++) {
+                if(!buffer.hasRemaining()) {
+                    write(channel, buffer);
+                }
+                buffer.put((byte)currentLine.charAt(i));
+            }
+        }
+        write(channel, buffer);
+
+        // close the file if we reached the end of it
+        if(currentLine == null) {
+            sequenceFile.close();
+        }
+        return id;
+    }
+
+    /**
+     * write the contents of the buffer to the channel, and empty it
+     */
+    protected static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
     public void remove() {
         throw new UnsupportedOperationException("Remove is not supported for this iterator.");
     }
@@ -0,0 +1,64 @@
+package proteogenomicmapping;
+
+/**
+ * A growable list of primitive ints, so that collecting positions
+ * and indices does not box every value
+ * @author Brandon
+ */
+public class IntList {
+
+    // <editor-fold defaultstate="collapsed" desc="Fields">
+    protected int[] values;
+    protected int size;
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Constructors">
+    public IntList() {
+        this(16);
+    }
+
+    public IntList(int capacity) {
+        values = new int[Math.max(capacity, 1)];
+        size = 0;
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="List Methods">
+    public void add(int value) {
+        if(size == values.length) {
+            int[] grown = new int[values.length * 2];
+            System.arraycopy(values, 0, grown, 0, size);
+            values = grown;
+        }
+        values[size++] = value;
+    }
+
+    public int get(int index) {
+        if(index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return values[index];
+    }
+
+    public void set(int index, int value) {
+        if(index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        values[index] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int[] toArray() {
+        int[] array = new int[size];
+        System.arraycopy(values, 0, array, 0, size);
+        return array;
+    }
+    // </editor-fold>
+}
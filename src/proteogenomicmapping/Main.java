@@ -13,6 +13,7 @@ import genesplicerparser.GeneSplicerParser;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import proteogenomicmapping.Mapper.MapperMode;
 
@@ -47,6 +48,13 @@ public class Main {
         ap.registerStringParameter("endSpliceSitesPath", "", 'e');
 
         ap.registerSwitch("tabbedFile", 't');
+        ap.registerStringParameter("automatonCache", "", 'a');
+        ap.registerIntegerParameter("shards", "1", 's');
+        ap.registerStringParameter("residueClasses", StateMachine.defaultResidueClasses, 'l');
+        ap.registerIntegerParameter("mismatches", "0", 'k');
+        ap.registerStringParameter("translationCache", "", 'x');
+        ap.registerIntegerParameter("threads", "1", 'j');
+        ap.registerIntegerParameter("windowLength", "0", 'w');
 
         ap.registerSwitch("help", 'h');
         
@@ -83,6 +91,13 @@ public class Main {
         System.out.print("--geneSplicerOutputPath, -g\t\t[optional] the path with the output of gene splicer.  these mark the exact coordinates of splice site boundaries and are used when determining the ePSTs.\n");
 
         System.out.print("--tabbedFile, -t\t\t[optional] instead of a fasta file, the lines of the input file are of the form <sequence>\\t<probability>.\n");
+        System.out.print("--automatonCache, -a\t\t[optional] the path of a file holding the compiled state machine for the peptides.  If the file was built from the same peptides, it is used instead of building the state machine again; otherwise, it is (re)written.\n");
+        System.out.print("--shards, -s\t\t\t[optional] split the peptides into this many shards, which are built and searched at the same time, one thread per shard.  The --automatonCache option is ignored when there is more than one shard.\n");
+        System.out.print("--residueClasses, -l\t\t[optional] classes of residues which match each other, separated by commas, e.g. \"IL,QK,ND\".  By default, isoleucine and leucine (\"IL\") match each other; use \"\" to only find exact matches.\n");
+        System.out.print("--mismatches, -k\t\t[optional] the number of residues of a peptide which may be substituted in a match, either 0 (default) or 1.  With 1, the output file has a last 'Mismatches' column with the number of substituted residues of each match, and the --shards and --automatonCache options are ignored.\n");
+        System.out.print("--translationCache, -x\t\t[optional] the path of a file holding the six reading frames of the reference, translated.  If the file was made from the same reference and code table, the reference is not translated again; otherwise, it is (re)written.\n");
+        System.out.print("--threads, -j\t\t\t[optional] the number of reference sequences to map at the same time, one thread each.  The output is the same as with 1 (default), in the order of the reference.\n");
+        System.out.print("--windowLength, -w\t\t[optional] map each reference sequence in windows of this many nucleotides, rather than reading it into memory, for sequences too long to hold at once (e.g. 100000000).  An ePST is cut short if it reaches more than 65536 nucleotides past its peptide.  This is ignored with the --shards and --mismatches options and with gene splicer output, and the --translationCache and --threads options are ignored with it.\n");
         System.out.print("--mode, -m\t\t[optional] the mode of the program to use. \"PGM\" (default) or \"SequestDifference\".\n");
         System.out.print("\n");
 
@@ -165,6 +180,16 @@ public class Main {
             int codons = config.getInt("codons");
             String geneSplicerOutputPath = config.getString("geneSplicerOutputPath");
             boolean tabbedFile = config.getBoolean("tabbedFile");
+            String automatonCache = config.getString("automatonCache");
+            int shards = config.getInt("shards");
+            String residueClasses = config.getString("residueClasses");
+            int mismatches = config.getInt("mismatches");
+            String translationCache = config.getString("translationCache");
+            int threads = config.getInt("threads");
+            int windowLength = config.getInt("windowLength");
+            if (mismatches < 0 || mismatches > MismatchSearch.maxMismatches) {
+                throw new IllegalArgumentException("Only 0 or " + MismatchSearch.maxMismatches + " mismatches are supported: " + mismatches);
+            }
 
             GeneSplicerParser geneSplicerParser = null;
             File f = new File(geneSplicerOutputPath);
@@ -189,15 +214,34 @@ public class Main {
             }
 
 
-            StateMachine sm = new StateMachine(peptides);
+            List<StateMachine> stateMachines;
+            MismatchSearch mismatchSearch = null;
+            if (mismatches > 0) {
+                mismatchSearch = new MismatchSearch(peptides, residueClasses);
+                stateMachines = Collections.<StateMachine>emptyList();
+                System.out.println(mismatchSearch.getStatistics());
+            } else if (shards > 1) {
+                stateMachines = StateMachine.buildShards(peptides, shards, residueClasses);
+            } else {
+                stateMachines = Collections.singletonList(StateMachine.getStateMachine(peptides, residueClasses, automatonCache));
+            }
+            if (mismatchSearch == null) {
+                for (StateMachine sm : stateMachines) {
+                    System.out.println(sm.getStatistics());
+                }
+            }
 
             CodeTable table = CodeTable.getCodeTable(codeFile, codeName);
 
-            Mapper mapper = new Mapper(peptides, sm,
+            Mapper mapper = new Mapper(peptides, stateMachines,
                     referenceFilePath, outputFilename, outputFastaFilename, outputGff3Filename,
                     table, mode,
                     beginSpliceSitesPath, endSpliceSitesPath,
                     codons, geneSplicerParser);
+            mapper.setMismatchSearch(mismatchSearch);
+            mapper.setTranslationCache(translationCache);
+            mapper.setThreads(threads);
+            mapper.setWindowLength(windowLength);
 
             // perform the mapping
             mapper.map();
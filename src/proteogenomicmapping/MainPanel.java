@@ -451,7 +451,8 @@ public class MainPanel extends javax.swing.JPanel {
             }
 
             tbStatus.setText(tbStatus.getText() + "\n" + "Constructing state machine...");
-            StateMachine sm = new StateMachine(peptides);
+            // the same residue classes as the command line uses by default
+            StateMachine sm = new StateMachine(peptides, StateMachine.defaultResidueClasses);
 
             tbStatus.setText(tbStatus.getText() + "\n" + "Reading the codon file...");
             CodeTable table = CodeTable.getCodeTable(codeFile, codeName);
@@ -2,13 +2,23 @@ package proteogenomicmapping;
 
 import codetable.CodeTable;
 import genesplicerparser.GeneSplicerParser;
-import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A class to map the given peptide sequences to a given genome
@@ -31,17 +41,118 @@ public class Mapper {
 
     StateMachine stateMachine;
     List<BioSequence> peptides;
+
+    /**
+     * the state machines for each shard of the peptides, if the peptides were
+     * split into shards, the shards are searched at the same time by executor
+     */
+    List<StateMachine> stateMachines;
+    ExecutorService executor;
+
+    /**
+     * if set, peptides are also matched with a substitution
+     * (see MismatchSearch), and the output has a mismatch column
+     */
+    MismatchSearch mismatchSearch;
+
+    /**
+     * a bit-parallel search for the peptides of the state machine,
+     * which is used instead of it when there are only a few peptides
+     */
+    ShiftAndSearch shiftAndSearch;
+
+    /**
+     * the peptides with the same sequence, which are all written for a match
+     */
+    PeptideGroups groups;
     CodeTable codeTable;
     Translator translator;
 
+    /**
+     * the start and stop codons of the last reference searched for an epst
+     * (see isCodon), which are marked the first time a match in it needs them,
+     * and indexed by reading frame (see findEpstProkaryote)
+     */
+    CharSequence markedReference;
+    byte[] codonMarks;
+    CodonIndex codonIndex = new CodonIndex();
+
+    /**
+     * a buffer for the reference, and for the translations of its six
+     * reading frames (see Translator.translateFrames), which are reused
+     * for every reference
+     */
+    ByteSequence forwardStrand = new ByteSequence();
+    ByteSequence[] translations = new ByteSequence[] {
+        new ByteSequence(), new ByteSequence(), new ByteSequence(),
+        new ByteSequence(), new ByteSequence(), new ByteSequence()
+    };
+
+    /**
+     * the end positions and (base 1) peptide indices of the matches in each
+     * reading frame, when the frames are searched as they are translated
+     * (see searchFrames)
+     */
+    IntList[] frameEnds = new IntList[6];
+    IntList[] frameMatches = new IntList[6];
+
+    /**
+     * the path of a file holding the translated reading frames of the reference
+     * (see TranslationCache), or empty for no cache.  while mapping, the cache
+     * is open, and referenceIndex is the index of the next reference sequence
+     */
+    String translationCacheFile = "";
+    TranslationCache translationCache;
+    int referenceIndex;
+
+    /**
+     * the number of reference sequences which are searched at the same time.
+     * each thread searches with its own copy of this mapper (see the copy
+     * constructor), which collects its matches, and the matches of each
+     * sequence are written to the files in the order of the reference
+     */
+    int threads = 1;
+
+    /**
+     * a reading frame longer than this many residues is split into chunks,
+     * which are searched at the same time by chunkExecutor when there is more
+     * than one thread (see searchChunks), so one long chromosome does not
+     * leave all but one thread waiting
+     */
+    int chunkLength = 1 << 20;
+    ExecutorService chunkExecutor;
+
+    /**
+     * if above 0, each reference sequence is mapped in windows of this many
+     * nucleotides (see mapWindows), so that a sequence is never held in memory
+     * at once.  a window is read with epstRadius nucleotides on either side of
+     * it, so an epst is only cut short if it reaches further than that from
+     * its peptide.  windowStrand and windowProtein hold the current window
+     */
+    int windowLength = 0;
+    int epstRadius = 1 << 16;
+    ByteSequence windowStrand = new ByteSequence();
+    ByteSequence windowProtein = new ByteSequence();
+
     String referenceFilename;
     String outputFilename;
     String outputFastaFilename;
     String outputGff3Filename;
 
-    PrintWriter outputFile;
-    PrintWriter outputFastaFile;
-    PrintWriter outputGff3File;
+    OutputFiles outputFiles;
+
+    /**
+     * the sinks which take the matches besides the output files (see addMatchSink)
+     */
+    List<MatchSink> matchSinks = new ArrayList<MatchSink>();
+
+    /**
+     * while mapping, the matches are handed to the output files and the sinks
+     * by this thread, or if it is null, as they are found.  a copy of the
+     * mapper collects its matches instead (see takeMatches)
+     */
+    MatchWriter matchWriter;
+    List<PeptideMatch> collectedMatches;
 
     /**
      * mode specific parameters
@@ -59,15 +170,40 @@ public class Mapper {
             String beginSpliceSitesPath, String endSpliceSitesPath,
             int codons, GeneSplicerParser geneSplicerParser) throws FileNotFoundException, IOException {
 
+        this(peptides, Collections.singletonList(stateMachine),
+                referenceFilePath, outputFilename, outputFastaFilename, outputGff3Filename,
+                codeTable, mode,
+                beginSpliceSitesPath, endSpliceSitesPath,
+                codons, geneSplicerParser);
+    }
+
+    /**
+     * create a mapper which searches with the state machine for each
+     * shard of the peptides (see StateMachine.buildShards).  the list is
+     * empty when only a mismatch search is used (see setMismatchSearch)
+     */
+    public Mapper(List<BioSequence> peptides, List<StateMachine> stateMachines,
+            String referenceFilePath, String outputFilename, String outputFastaFilename, String outputGff3Filename,
+            CodeTable codeTable, MapperMode mode,
+            String beginSpliceSitesPath, String endSpliceSitesPath,
+            int codons, GeneSplicerParser geneSplicerParser) throws FileNotFoundException, IOException {
+
         this.peptides = peptides;
-        this.stateMachine = stateMachine;
+        this.stateMachines = stateMachines;
+        this.stateMachine = stateMachines.isEmpty() ? null : stateMachines.get(0);
+        if(stateMachine != null) {
+            this.groups = stateMachine.getGroups();
+        }
+        if(stateMachines.size() == 1 && ShiftAndSearch.isSuitable(stateMachine)) {
+            this.shiftAndSearch = new ShiftAndSearch(stateMachine);
+        }
         this.referenceFilename = referenceFilePath;
         this.outputFilename = outputFilename;
         this.outputFastaFilename = outputFastaFilename;
         this.outputGff3Filename = outputGff3Filename;
 
         this.codeTable = codeTable;
-        this.translator = new Translator(codeTable.getCodonTable());
+        this.translator = new Translator(codeTable.getCodonTable(), codeTable.getStartCodons(), codeTable.getEndCodons());
 
         this.mode = mode;
 
@@ -76,8 +212,114 @@ public class Mapper {
         this.codons = codons;
         this.geneSplicerParser = geneSplicerParser;
 
+        for(int frame = 0; frame < frameEnds.length; frame++) {
+            frameEnds[frame] = new IntList();
+            frameMatches[frame] = new IntList();
+        }
+    }
+
+    /**
+     * create a copy of the mapper for searching reference sequences on another
+     * thread.  the copy shares everything which is only read while searching,
+     * such as the state machines and the translator, but has its own buffers,
+     * and collects its matches instead of writing them
+     * @param mapper the mapper to copy
+     */
+    protected Mapper(Mapper mapper) {
+        this.mode = mapper.mode;
+        this.stateMachine = mapper.stateMachine;
+        this.peptides = mapper.peptides;
+        this.stateMachines = mapper.stateMachines;
+        this.executor = mapper.executor;
+        this.chunkExecutor = mapper.chunkExecutor;
+        this.chunkLength = mapper.chunkLength;
+        this.mismatchSearch = mapper.mismatchSearch;
+        this.shiftAndSearch = mapper.shiftAndSearch;
+        this.groups = mapper.groups;
+        this.codeTable = mapper.codeTable;
+        this.translator = mapper.translator;
+        this.translationCacheFile = mapper.translationCacheFile;
+        this.translationCache = mapper.translationCache;
+
+        this.referenceFilename = mapper.referenceFilename;
+        this.outputFilename = mapper.outputFilename;
+        this.outputFastaFilename = mapper.outputFastaFilename;
+        this.outputGff3Filename = mapper.outputGff3Filename;
+
+        this.codons = mapper.codons;
+        this.geneSplicerParser = mapper.geneSplicerParser;
+        this.beginSpliceSites = mapper.beginSpliceSites;
+        this.endSpliceSites = mapper.endSpliceSites;
+
+        for(int frame = 0; frame < frameEnds.length; frame++) {
+            frameEnds[frame] = new IntList();
+            frameMatches[frame] = new IntList();
+        }
+
+        collectedMatches = new ArrayList<PeptideMatch>();
     }// </editor-fold>
 
+    /**
+     * search with the mismatch search instead of the state machines,
+     * so that peptides which differ from the reference by one residue are found
+     * @param mismatchSearch the mismatch search, or null to only find exact matches
+     */
+    public void setMismatchSearch(MismatchSearch mismatchSearch) {
+        this.mismatchSearch = mismatchSearch;
+        if(mismatchSearch != null) {
+            this.groups = mismatchSearch.getGroups();
+        }
+    }
+
+    /**
+     * read the translated reading frames of the reference from the cache file
+     * if it was made from the same reference and codon table; otherwise,
+     * translate the reference and write the cache file for the next run
+     * @param translationCacheFile the path of the cache file, or empty for no cache
+     */
+    public void setTranslationCache(String translationCacheFile) {
+        this.translationCacheFile = translationCacheFile;
+    }
+
+    /**
+     * search this many reference sequences at the same time.  the output is
+     * the same as searching them one at a time.  a translation cache is only
+     * written from a single thread, so this is ignored while one is written
+     * @param threads the number of threads, 1 to search on the calling thread
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * map each reference sequence in windows, rather than reading it into
+     * memory, for sequences too long to hold at once.  the windows are only
+     * used with a single state machine, without a mismatch search, and not
+     * with gene splicer output, whose splice sites are positions in the whole
+     * sequence; otherwise (and with 0) the sequences are mapped whole
+     * @param windowLength the number of nucleotides in a window, or 0
+     */
+    public void setWindowLength(int windowLength) {
+        this.windowLength = Math.max(windowLength, 0);
+    }
+
+    /**
+     * hand the matches of every mapping to the sink as well as writing them
+     * to the output files, e.g. to use them without reading the output files
+     * @param sink the sink, which is closed after the last match of each mapping
+     */
+    public void addMatchSink(MatchSink sink) {
+        matchSinks.add(sink);
+    }
+
+    /**
+     * @return true if the reference sequences are mapped in windows (see setWindowLength)
+     */
+    protected boolean isWindowed() {
+        return windowLength > 0 && mismatchSearch == null && stateMachines.size() == 1
+                && mode != MapperMode.GeneSplicer;
+    }
+
     // <editor-fold defaultstate="collapsed" desc="File IO">
     /**
      * open all of the output files for writing
@@ -85,30 +327,94 @@ public class Mapper {
      */
     public void openOutputFiles() throws IOException {
         // setup the output files
-        outputFile = new PrintWriter(new BufferedWriter(new FileWriter(outputFilename)));
-        outputFastaFile = new PrintWriter(new BufferedWriter(new FileWriter(outputFastaFilename)));
-        outputGff3File = new PrintWriter(new BufferedWriter(new FileWriter(outputGff3Filename)));
+        outputFiles = new OutputFiles(outputFilename, outputFastaFilename, outputGff3Filename,
+                peptides, groups, translator, mismatchSearch != null);
     }
 
     /**
      * print the header for the output file
      */
     protected void printHeaders() {
-        outputFile.print("Peptide ID\tPeptide Sequence\tGenome ID\tStart\tEnd\tStrand\tReading Frame\t");
-        outputFile.print("RT Peptide Sequence\tePST Start\tePST End\tePST\tePST Length\tTranslated ePST\t");
-        outputFile.print("Start Codon\tPeptide Probability\tPeptide Count");
-        outputFile.println();
+        outputFiles.printHeaders();
+    }
+
+    /**
+     * take the matches collected by a copy of the mapper (see the copy constructor)
+     * @return the matches, in the order they were found
+     */
+    protected List<PeptideMatch> takeMatches() {
+        List<PeptideMatch> matches = collectedMatches;
+        collectedMatches = new ArrayList<PeptideMatch>();
+        return matches;
+    }
+
+    /**
+     * hand a match to the output files and the sinks, on the match writer
+     * thread while mapping, to a copy's list of matches, or else straight away.
+     * only a match put on the queue of the match writer copies its part of the
+     * reference (see PeptideMatch.copy), since the reference buffer is reused
+     * for the next sequence or window before the match is written
+     * @param match the match
+     */
+    protected void addMatch(PeptideMatch match) {
+        if(collectedMatches != null) {
+            collectedMatches.add(match);
+        } else if(matchWriter != null) {
+            matchWriter.add(match.copy());
+        } else {
+            for(MatchSink sink : getMatchSinks()) {
+                sink.match(match);
+            }
+        }
+    }
 
-        outputGff3File.println("##gff-version 3");
+    /**
+     * @return the output files, if they are open, and the other sinks
+     */
+    protected List<MatchSink> getMatchSinks() {
+        List<MatchSink> sinks = new ArrayList<MatchSink>();
+        if(outputFiles != null) {
+            sinks.add(outputFiles);
+        }
+        sinks.addAll(matchSinks);
+        return sinks;
     }
 
     /**
      * close all of the output files
+     * @throws IOException if writing any of them failed
+     */
+    public void closeOutputFiles() throws IOException {
+        if(outputFiles != null) {
+            OutputFiles files = outputFiles;
+            outputFiles = null;
+            files.close();
+        }
+    }
+
+    /**
+     * close the output files and every other sink, even if closing one fails
+     * @param throwErrors true to throw the first error closing a sink
      */
-    public void closeOutputFiles() {
-        outputFile.close();
-        outputFastaFile.close();
-        outputGff3File.close();
+    protected void closeMatchSinks(boolean throwErrors) throws IOException {
+        IOException error = null;
+        try {
+            closeOutputFiles();
+        } catch (IOException ex) {
+            error = ex;
+        }
+        for(MatchSink sink : matchSinks) {
+            try {
+                sink.close();
+            } catch (IOException ex) {
+                if(error == null) {
+                    error = ex;
+                }
+            }
+        }
+        if(throwErrors && error != null) {
+            throw error;
+        }
     }
     
     public void findUniqueEpsts() {
@@ -118,62 +424,407 @@ public class Mapper {
     // </editor-fold>
 
     public void map() throws IOException, FileNotFoundException {
-        openOutputFiles();
+        referenceIndex = 0;
+
+        boolean mapped = false;
+        try {
+            // the cache is opened first, so the output files of the last run
+            // are not emptied if it can not be
+            if(translationCacheFile.length() > 0 && !isWindowed()) {
+                translationCache = TranslationCache.open(translationCacheFile, referenceFilename, translator);
+                if(translationCache == null) {
+                    translationCache = TranslationCache.create(translationCacheFile, referenceFilename, translator);
+                }
+            }
+
+            openOutputFiles();
+
+            // search the shards at the same time
+            if(stateMachines.size() > 1) {
+                executor = Executors.newFixedThreadPool(stateMachines.size());
+            }
+
+            // search the chunks of long reading frames at the same time
+            if(threads > 1) {
+                chunkExecutor = Executors.newFixedThreadPool(threads);
+            }
+
+            printHeaders();
+            matchWriter = new MatchWriter(getMatchSinks(), MatchWriter.defaultCapacity);
+            FASTASequenceReader referenceSequences = new FASTASequenceReader(referenceFilename);
+            if(isWindowed()) {
+                mapWindows(referenceSequences);
+            } else if(threads > 1 && (translationCache == null || !translationCache.isWriting())) {
+                mapConcurrently(referenceSequences);
+            } else {
+                int i = 0;
+                while(referenceSequences.hasNext()) {
+                    BioSequence sequence = referenceSequences.next();
+                    if(i++ % 100 == 0) { System.out.print("."); }
+                    search(sequence);
+                }
+            }
+            matchWriter.close();
+            matchWriter = null;
 
-        printHeaders();
-        int i = 0;
-        FASTASequenceReader referenceSequences = new FASTASequenceReader(referenceFilename);
-        while(referenceSequences.hasNext()) {
-            BioSequence sequence = referenceSequences.next();
-            if(i++ % 100 == 0) { System.out.print("."); }
-            search(sequence);
+            // a cache which was written is only complete once it is closed
+            if(translationCache != null) {
+                translationCache.close();
+                translationCache = null;
+            }
+            mapped = true;
+        } finally {
+            if(executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+            if(chunkExecutor != null) {
+                chunkExecutor.shutdown();
+                chunkExecutor = null;
+            }
+            if(matchWriter != null) {
+                matchWriter.abort();
+                matchWriter = null;
+            }
+            if(translationCache != null) {
+                translationCache.discard();
+                translationCache = null;
+            }
+
+            // the output is closed even when the search failed, but an error
+            // closing it is only thrown after a search which succeeded, so it
+            // does not hide the error of the search
+            closeMatchSinks(mapped);
         }
 
-        closeOutputFiles();
-        
         findUniqueEpsts();
     }
 
+    /**
+     * search the reference sequences on threads threads, each with its own
+     * copy of this mapper, and write the output of each sequence in order.
+     * only a few more sequences than threads are read ahead, so the sequences
+     * are not all held in memory at once
+     * @param referenceSequences the reference sequences
+     */
+    protected void mapConcurrently(FASTASequenceReader referenceSequences) throws IOException {
+        final ThreadLocal<Mapper> copies = new ThreadLocal<Mapper>() {
+            @Override
+            protected Mapper initialValue() {
+                return new Mapper(Mapper.this);
+            }
+        };
+
+        ExecutorService sequenceExecutor = Executors.newFixedThreadPool(threads);
+        try {
+            LinkedList<Future<List<PeptideMatch>>> pending = new LinkedList<Future<List<PeptideMatch>>>();
+            int i = 0;
+            while(referenceSequences.hasNext()) {
+                final BioSequence sequence = referenceSequences.next();
+                final int sequenceIndex = i;
+                if(i++ % 100 == 0) { System.out.print("."); }
+                pending.add(sequenceExecutor.submit(new Callable<List<PeptideMatch>>() {
+                    public List<PeptideMatch> call() throws IOException {
+                        Mapper copy = copies.get();
+                        copy.referenceIndex = sequenceIndex;
+                        copy.search(sequence);
+                        return copy.takeMatches();
+                    }
+                }));
+
+                // wait for the oldest sequence once enough are read ahead
+                if(pending.size() >= 2 * threads) {
+                    addMatches(pending.removeFirst().get());
+                }
+            }
+            while(!pending.isEmpty()) {
+                addMatches(pending.removeFirst().get());
+            }
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            sequenceExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * map each reference sequence in windows, without holding it in memory.
+     * the sequence is copied to a temporary file, one byte per nucleotide,
+     * then each reading frame is read back from the file a window at a time
+     * (see searchWindows).  the frames are searched one after the other, as
+     * with search, so the output is the same as mapping the whole sequence,
+     * except for an epst which reaches further than epstRadius from its peptide
+     * @param referenceSequences the reference sequences
+     */
+    protected void mapWindows(FASTASequenceReader referenceSequences) throws IOException {
+        String[] readingFrames = { "F1", "F2", "F3", "R1", "R2", "R3" };
+        File strandFile = File.createTempFile("strand", ".seq");
+        RandomAccessFile strand = new RandomAccessFile(strandFile, "rw");
+        try {
+            FileChannel channel = strand.getChannel();
+            int i = 0;
+            while(referenceSequences.hasNext()) {
+                if(i++ % 100 == 0) { System.out.print("."); }
+                channel.truncate(0);
+                channel.position(0);
+                String sequenceName = referenceSequences.next(channel);
+                long strandLength = channel.size();
+                for(int frame = 0; frame < readingFrames.length; frame++) {
+                    searchWindows(channel, strandLength, frame, readingFrames[frame], sequenceName);
+                }
+            }
+        } finally {
+            strand.close();
+            strandFile.delete();
+        }
+    }
+
+    /**
+     * search a reading frame of the sequence in the file a window at a time.
+     * each window is translated and fed to the state machine, whose state is
+     * carried from one window to the next, so the windows do not overlap for
+     * the search and the matches are the same as search over the whole frame.
+     * each window is read with the nucleotides around it, as far as the
+     * longest peptide and epstRadius before it and epstRadius after it, from
+     * which the rtp and the epst of its matches are found
+     * @param strand the forward strand, one byte per nucleotide
+     * @param strandLength the number of nucleotides in the strand
+     * @param frame the index of the reading frame, 0 to 5 for F1 to R3
+     * @param readingFrame the name of the reading frame
+     * @param sequenceName the name of the sequence
+     */
+    protected void searchWindows(FileChannel strand, long strandLength, int frame, String readingFrame, String sequenceName) throws IOException {
+        int shift = frame % 3;
+        boolean reverse = frame >= 3;
+        long frameLength = Math.max(strandLength - shift, 0);
+
+        // the same residues as search, which never ends a match at the last residue
+        long limit = Math.max(frameLength / 3 - 1, 0);
+        int windowResidues = Math.max(windowLength / 3, 1);
+        int radius = mode == MapperMode.Codon ? Math.max(epstRadius, 3 * codons + 3) : epstRadius;
+        int before = 3 * stateMachine.getMaxPatternLength() + radius;
+
+        int state = 0;
+        for(long start = 0; start < limit; start += windowResidues) {
+            long end = Math.min(start + windowResidues, limit);
+
+            // the nucleotides of the window and around it, from the start of a codon
+            long first = Math.max(3 * start - before, 0);
+            first -= first % 3;
+            long last = Math.min(3 * end + radius, frameLength);
+            readWindow(strand, strandLength, shift, reverse, first, last);
+
+            int residueCount = (int)(end - start);
+            int offset = (int)(3 * start - first);
+            byte[] protein = windowProtein.getBuffer(residueCount);
+            translator.translate(windowStrand.getBytes(), offset, offset + 3 * residueCount, protein);
+
+            for(int k = 0; k < residueCount; k++) {
+                state = stateMachine.getNextState(state, (char)(protein[k] & 0xFF));
+                for(int match = stateMachine.getFirstMatch(state); match != 0; match = stateMachine.getOutputLink(match)) {
+                    writeMatches(stateMachine.getPattern(match), offset / 3 + k, 0,
+                            windowStrand, first, frameLength, readingFrame, sequenceName);
+                }
+            }
+        }
+    }
+
+    /**
+     * read part of a reading frame of the strand in the file into windowStrand,
+     * upper case, and reverse complemented for a reverse reading frame
+     * @param strand the forward strand, one byte per nucleotide
+     * @param strandLength the number of nucleotides in the strand
+     * @param shift the number of nucleotides skipped at the start of the frame
+     * @param reverse true for a reverse reading frame
+     * @param first the position within the frame of the first nucleotide to read
+     * @param last the position within the frame after the last nucleotide to read
+     */
+    protected void readWindow(FileChannel strand, long strandLength, int shift, boolean reverse, long first, long last) throws IOException {
+        int length = (int)(last - first);
+        byte[] bytes = windowStrand.getBuffer(length);
+        long position = reverse ? strandLength - shift - last : shift + first;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while(buffer.hasRemaining()) {
+            if(strand.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("The reference sequence ended at " + (position + buffer.position()) + " of " + strandLength);
+            }
+        }
+        windowStrand.setLength(length);
+        toUpperCase(windowStrand);
+
+        // the codons are marked again for the new window (see isCodon)
+        markedReference = null;
+
+        if(reverse) {
+            byte[] complements = translator.complements;
+            for(int i = 0, j = length - 1; i <= j; i++, j--) {
+                byte nucleotide = bytes[i];
+                bytes[i] = complements[bytes[j] & 0xFF];
+                bytes[j] = complements[nucleotide & 0xFF];
+            }
+        }
+    }
+
+    /**
+     * hand the matches of a copy of the mapper (see takeMatches) to the match writer
+     */
+    protected void addMatches(List<PeptideMatch> matches) {
+        for(PeptideMatch match : matches) {
+            matchWriter.add(match);
+        }
+    }
+
     /**
      * use the state machine to search the given peptide for the peptides
      * append the results to the output file
      * @param peptide the peptide DNA strand to search
      */
     //protected void search(RichSequence reference) {
-    protected void search(BioSequence reference) {
+    protected void search(BioSequence reference) throws IOException {
+
+        // the matches of a copy are kept until after it has moved on to the
+        // next sequence, so each sequence gets a buffer of its own, which the
+        // matches hold rather than copies of their part of it (see addMatch)
+        if(collectedMatches != null) {
+            forwardStrand = new ByteSequence(reference.getSequence().length());
+        }
+        forwardStrand.set(reference.getSequence());
+        toUpperCase(forwardStrand);
+
+        // the reading frames of the reference are read from the forward
+        // strand, so the reverse complement is never made
+        String[] readingFrames = { "F1", "F2", "F3", "R1", "R2", "R3" };
+
+        // the reading frames are read from the translation cache, or
+        // translated and written to it for the next run
+        CharSequence[] frames = translations;
+        if(translationCache != null) {
+            if(translationCache.isWriting()) {
+                translator.translateFrames(forwardStrand.getBytes(), forwardStrand.length(), translations);
+                translationCache.write(translations, forwardStrand.length());
+            } else {
+                if(translationCache.getStrandLength(referenceIndex) != forwardStrand.length()) {
+                    throw new IOException("The translation cache " + translationCacheFile + " does not match sequence " + reference.getId());
+                }
+                frames = translationCache.getFrames(referenceIndex);
+            }
+            referenceIndex++;
+
+        // a single state machine consumes the amino acids as they are
+        // translated, so the reading frames are never translated into buffers
+        } else if(mismatchSearch == null && stateMachines.size() == 1
+                && shiftAndSearch == null
+                && !isChunked(forwardStrand.length() / 3)) {
+            searchFrames(forwardStrand);
+            for(int frame = 0; frame < readingFrames.length; frame++) {
+                CharSequence frameReference = translator.getReadingFrame(forwardStrand, readingFrames[frame]);
+                for(int match = 0; match < frameMatches[frame].size(); match++) {
+                    writeMatches(frameMatches[frame].get(match), frameEnds[frame].get(match), 0,
+                            frameReference, readingFrames[frame], reference.getId());
+                }
+            }
+            return;
+
+        // translate all six reading frames at once
+        } else {
+            translator.translateFrames(forwardStrand.getBytes(), forwardStrand.length(), translations);
+        }
+
+        for(int frame = 0; frame < readingFrames.length; frame++) {
+            CharSequence frameReference = translator.getReadingFrame(forwardStrand, readingFrames[frame]);
+            search(frames[frame], frameReference, readingFrames[frame], reference.getId());
+        }
+    }
 
-        String f1 = reference.toString().toUpperCase();
+    /**
+     * search all six reading frames of the strand with the state machine,
+     * feeding it each amino acid as soon as its codon is read, and collect the
+     * matches of each frame in frameEnds and frameMatches.  the forward frames
+     * are searched in one pass forwards over the strand, and the reverse frames
+     * in one pass backwards, complementing the codons.  the matches are the same
+     * as searching each translated frame with search, which never ends a match
+     * at the last residue of a frame
+     * @param strand the forward strand, all upper case
+     */
+    protected void searchFrames(ByteSequence strand) {
+        byte[] bytes = strand.getBytes();
+        int length = strand.length();
+        byte[] nucleotideMasks = translator.nucleotideMasks;
+        byte[] complementMasks = translator.complementMasks;
+        char[] aminoAcids = translator.aminoAcids;
+        for(int frame = 0; frame < frameEnds.length; frame++) {
+            frameEnds[frame].clear();
+            frameMatches[frame].clear();
+        }
 
-        // sequence is the translated and reading-frame adjusted peptide sequence
-        String sequence = translator.translateSequence(f1);
+        // the codon starting at p is residue p / 3 of forward frame p % 3, which
+        // is searched if it is not the last residue of the frame, p + 6 <= length
+        int[] states = new int[3];
+        int frame = 0;
+        int residue = 0;
+        int codon = 0;
+        for(int i = 0; i + 4 <= length; i++) {
+            codon = ((codon << 4) | nucleotideMasks[bytes[i] & 0xFF]) & (Translator.codonIndexCount - 1);
+            if(i < 2) {
+                continue;
+            }
 
-	// F1
-	search(sequence, f1, "F1", reference.getId());
+            int state = stateMachine.getNextState(states[frame], aminoAcids[codon]);
+            states[frame] = state;
+            for(int match = stateMachine.getFirstMatch(state); match != 0; match = stateMachine.getOutputLink(match)) {
+                frameEnds[frame].add(residue);
+                frameMatches[frame].add(stateMachine.getPattern(match));
+            }
 
-	// F2
-        String f2 = translator.getReadingFrame(f1, "F2");
-        sequence = translator.translateSequence(f2);
-        search(sequence, f2, "F2", reference.getId());
+            if(++frame == 3) {
+                frame = 0;
+                residue++;
+            }
+        }
 
-	// F3
-        String f3 = translator.getReadingFrame(f1, "F3");
-        sequence = translator.translateSequence(f3);
-        search(sequence, f3, "F3", reference.getId());
+        // the reverse complement of the codon starting at p is residue q / 3 of
+        // reverse frame q % 3, where q = length - 3 - p.  reading backwards, the
+        // complement of each nucleotide is the next one of the reversed codon
+        states = new int[3];
+        frame = 0;
+        residue = 0;
+        codon = 0;
+        for(int i = length - 1; i >= 3; i--) {
+            int mask = complementMasks[nucleotideMasks[bytes[i] & 0xFF]];
+            codon = ((codon << 4) | mask) & (Translator.codonIndexCount - 1);
+            if(i > length - 3) {
+                continue;
+            }
 
-	// R1
-        String r1 = translator.getReadingFrame(f1, "R1");
-        sequence = translator.translateSequence(r1);
-        search(sequence, r1, "R1", reference.getId());
+            int state = stateMachine.getNextState(states[frame], aminoAcids[codon]);
+            states[frame] = state;
+            for(int match = stateMachine.getFirstMatch(state); match != 0; match = stateMachine.getOutputLink(match)) {
+                frameEnds[frame + 3].add(residue);
+                frameMatches[frame + 3].add(stateMachine.getPattern(match));
+            }
 
-	// R2
-        String r2 = translator.getReadingFrame(f1, "R2");
-        sequence = translator.translateSequence(r2);
-        search(sequence, r2, "R2", reference.getId());
+            if(++frame == 3) {
+                frame = 0;
+                residue++;
+            }
+        }
+    }
 
-	// R3
-        String r3 = translator.getReadingFrame(f1, "R3");
-        sequence = translator.translateSequence(r3);
-        search(sequence, r3, "R3", reference.getId());
+    /**
+     * convert the (ASCII) sequence to upper case in place
+     */
+    protected static void toUpperCase(ByteSequence sequence) {
+        byte[] bytes = sequence.getBytes();
+        for(int i = 0; i < sequence.length(); i++) {
+            if(bytes[i] >= 'a' && bytes[i] <= 'z') {
+                bytes[i] -= 'a' - 'A';
+            }
+        }
     }
 
     /**
@@ -186,149 +837,364 @@ public class Mapper {
      * @param readingFrame the reading frame from which this sequence was translated
      * @param sequenceName the name of this peptide sequence
      */
-    protected void search(String peptide, String reference, String readingFrame, String sequenceName) {
+    protected void search(CharSequence peptide, CharSequence reference, String readingFrame, String sequenceName) {
+
+        if(mismatchSearch != null) {
+            searchMismatches(peptide, reference, readingFrame, sequenceName);
+            return;
+        }
+
+        if(stateMachines.size() > 1) {
+            searchShards(peptide, reference, readingFrame, sequenceName);
+            return;
+        }
+
+        if(isChunked(peptide.length())) {
+            searchChunks(peptide, reference, readingFrame, sequenceName);
+            return;
+        }
+
+        if(shiftAndSearch != null) {
+            searchShiftAnd(peptide, reference, readingFrame, sequenceName);
+            return;
+        }
 
         // which node am i in the state machine
         int state = 0;
 
 	int peptideLength= peptide.length();
-        int referenceLength = reference.length();
 
 	for (int i = 0; i < peptideLength - 1; i++)
 	{
             // determine which state to move to next
-//            char ch = peptide.charAt(i);
-//            ch -= 'A';
-            String ch = peptide.substring(i, i+1);
-            
-            // check the new state
-            //state = stateMachine.nodes.get(state).edges[ch];
-            state = stateMachine.nodes.get(state).getNextState(ch);
-
-            // did we match a pattern?
-            int peptideIndex = stateMachine.nodes.get(state).pattern;
-            if(peptideIndex != -1) {
-                // peptideIndex-1 because the peptide indices are base 1
-                String peptideName = peptides.get(peptideIndex - 1).getId();
-                String peptideSequence = peptides.get(peptideIndex - 1).toString();
-                int length = peptides.get(peptideIndex - 1).length();
-
-                BioSequence matchedPeptide = peptides.get(peptideIndex-1);
-
-                // the end position of the reverse translated peptide
-                // i*3 currently points to the beginning of the stop codon
-                // before accounting for reading frame
-                int endRTP = i * 3;
-                
-                // adjust endRTP so that it points to the end of the stop codon
-                endRTP += 3;
-
-                // multiply by three because the peptide is a protein
-                length *= 3;
-                int startRTP = endRTP - length;
-
-                // reverseTranslatedPeptide is the reverse translated peptide match
-                String reverseTranslatedPeptide = reference.substring(startRTP, endRTP);
-
-                // find the actual epst
-                int startEpst = startRTP;
-                int endEpst = endRTP;
-
-                // find the epst
-                IntWrapper start = new IntWrapper(startRTP);
-                IntWrapper end = new IntWrapper(endRTP);
-                String epst = findEpst(reference, startRTP, endRTP, start, end);
-                startEpst = start.value;
-                endEpst = end.value;
-
-                // adjust the coordinates for the reading frame
-                String strand = "+";
-                if(readingFrame.startsWith("R")) { // reverse reading frame
-                    strand = "-";
-
-                    // flip the coordinates if on the reverse strand
-                    startRTP = referenceLength - startRTP;
-                    endRTP = referenceLength - endRTP;
-                    startEpst = referenceLength - startEpst;
-                    endEpst = referenceLength - endEpst;
-
-                    /**
-                     * because coordinates for the "start" of the reverse strand are
-                     * at the end of the sequence, to keep the coordinates relative
-                     * to the positive strand, there is no need to correct the coordinates
-                     */
-//                    if(readingFrame.substring(1).equals("2")) {
-//                        startRTP--; endRTP--;
-//                        startEpst--; endEpst--;
-//                    } else if(readingFrame.substring(1).equals("3")) {
-//                        startRTP-=2; endRTP-=2;
-//                        startEpst-=2; endEpst-=2;
-//                    }
-                } else { // positive strand
-                    if(readingFrame.substring(1).equals("2")) {
-                        startRTP++; endRTP++;
-                        startEpst++; endEpst++;
-                    } else if(readingFrame.substring(1).equals("3")) {
-                        startRTP+=2; endRTP+=2;
-                        startEpst+=2; endEpst+=2;
-                    }
-                }
-                
-                // clamp the bounds
-                if (startRTP < 0) {
-                    startRTP = 0;
-                }
+            state = stateMachine.getNextState(state, peptide.charAt(i));
+
+            // did we match any patterns?
+            // follow the output links so that peptides which are suffixes
+            // of other peptides are reported, too
+            for(int match = stateMachine.getFirstMatch(state); match != 0; match = stateMachine.getOutputLink(match)) {
+                int peptideIndex = stateMachine.getPattern(match);
+                writeMatches(peptideIndex, i, 0, reference, readingFrame, sequenceName);
+            }
+	}
+    }
 
-                if (endRTP >= referenceLength) {
-                    endRTP = referenceLength - 1;
-                }
-                if (startEpst < 0) {
-                    startEpst = 0;
+    /**
+     * search the translated sequence with the bit-parallel search, which
+     * finds the same matches as the state machine
+     *
+     * the parameters are the same as search
+     */
+    protected void searchShiftAnd(CharSequence peptide, CharSequence reference, String readingFrame, String sequenceName) {
+        int limit = Math.max(peptide.length() - 1, 0);
+        IntList ends = new IntList();
+        IntList matches = new IntList();
+        shiftAndSearch.search(peptide, limit, ends, matches);
+
+        for(int match = 0; match < matches.size(); match++) {
+            writeMatches(matches.get(match), ends.get(match), 0, reference, readingFrame, sequenceName);
+        }
+    }
+
+    /**
+     * @param residues the length of a translated reading frame
+     * @return true if the frame is long enough to be split into chunks which
+     *          are searched at the same time (see searchChunks)
+     */
+    protected boolean isChunked(int residues) {
+        return chunkExecutor != null && residues > chunkLength
+                && mismatchSearch == null && stateMachines.size() == 1;
+    }
+
+    /**
+     * search the translated sequence in chunks of chunkLength residues at the
+     * same time, then write the matches of the chunks in order.  each chunk
+     * only reports the matches which end in it, but the state machine starts
+     * reading the length of the longest peptide before it (see
+     * StateMachine.search), so a match across the seam of two chunks is found
+     * once, by the chunk in which it ends, and the matches are the same as
+     * searching the whole sequence
+     *
+     * the parameters are the same as search
+     */
+    protected void searchChunks(final CharSequence peptide, CharSequence reference, String readingFrame, String sequenceName) {
+        final int limit = Math.max(peptide.length() - 1, 0);
+        List<Future<IntList[]>> futures = new ArrayList<Future<IntList[]>>();
+        for(int start = 0; start < limit; start += chunkLength) {
+            final int chunkStart = start;
+            final int chunkLimit = (int)Math.min((long)start + chunkLength, limit);
+            futures.add(chunkExecutor.submit(new Callable<IntList[]>() {
+                public IntList[] call() {
+                    IntList chunkEnds = new IntList();
+                    IntList chunkMatches = new IntList();
+                    stateMachine.search(peptide, chunkStart, chunkLimit, chunkEnds, chunkMatches);
+                    return new IntList[] { chunkEnds, chunkMatches };
                 }
+            }));
+        }
 
-                if (endEpst >= referenceLength) {
-                    endEpst = referenceLength - 1;
+        try {
+            for(Future<IntList[]> future : futures) {
+                IntList[] result = future.get();
+                for(int match = 0; match < result[1].size(); match++) {
+                    writeMatches(result[1].get(match), result[0].get(match), 0, reference, readingFrame, sequenceName);
                 }
+            }
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+    }
 
-                // add one to start and end values because sequences are base 1
-                startRTP++;
-                // for some reason?? endRTP is already correct??
-                //endRTP++;
-                startEpst++;
-                endEpst++;
+    /**
+     * search the translated sequence for peptides which match with at most
+     * one substitution, and write the matches with their number of mismatches
+     *
+     * the parameters are the same as search
+     */
+    protected void searchMismatches(CharSequence peptide, CharSequence reference, String readingFrame, String sequenceName) {
+        // the same residues as search, which never ends a match at the last residue
+        int limit = Math.max(peptide.length() - 1, 0);
+        IntList ends = new IntList();
+        IntList matches = new IntList();
+        IntList mismatches = new IntList();
+        mismatchSearch.search(peptide, limit, ends, matches, mismatches);
+
+        for(int match = 0; match < matches.size(); match++) {
+            writeMatches(matches.get(match), ends.get(match), mismatches.get(match), reference, readingFrame, sequenceName);
+        }
+    }
 
+    /**
+     * search the translated sequence with the state machine of every shard,
+     * at the same time if there is an executor, then write the matches in the
+     * order a single state machine would have found them: by the position of
+     * the end of the match, and the longest peptide first for the same end
+     *
+     * the parameters are the same as search
+     */
+    protected void searchShards(final CharSequence peptide, CharSequence reference, String readingFrame, String sequenceName) {
+        final int limit = Math.max(peptide.length() - 1, 0);
+        int shardCount = stateMachines.size();
+        IntList[] ends = new IntList[shardCount];
+        IntList[] matches = new IntList[shardCount];
+
+        if(executor == null) {
+            for(int shard = 0; shard < shardCount; shard++) {
+                ends[shard] = new IntList();
+                matches[shard] = new IntList();
+                stateMachines.get(shard).search(peptide, limit, ends[shard], matches[shard]);
+            }
+        } else {
+            List<Future<IntList[]>> futures = new ArrayList<Future<IntList[]>>();
+            for(final StateMachine shardStateMachine : stateMachines) {
+                futures.add(executor.submit(new Callable<IntList[]>() {
+                    public IntList[] call() {
+                        IntList shardEnds = new IntList();
+                        IntList shardMatches = new IntList();
+                        shardStateMachine.search(peptide, limit, shardEnds, shardMatches);
+                        return new IntList[] { shardEnds, shardMatches };
+                    }
+                }));
+            }
 
-                // translate the DNA version of the epst to a protein version
-                int epstLength = Math.abs(startEpst - endEpst);
-                String translatedEpst = translator.translateSequence(epst);
+            try {
+                for(int shard = 0; shard < shardCount; shard++) {
+                    IntList[] result = futures.get(shard).get();
+                    ends[shard] = result[0];
+                    matches[shard] = result[1];
+                }
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            }
+        }
 
-                String startCodon = "-";
-                if(startRTP != startEpst) {
-                    startCodon = epst.substring(0, 3);
+        // merge the matches of the shards, each of which is already in order
+        int[] next = new int[shardCount];
+        while(true) {
+            int best = -1;
+            for(int shard = 0; shard < shardCount; shard++) {
+                if(next[shard] == matches[shard].size()) {
+                    continue;
+                }
+                if(best == -1 || isBefore(ends[shard].get(next[shard]), matches[shard].get(next[shard]),
+                        ends[best].get(next[best]), matches[best].get(next[best]))) {
+                    best = shard;
                 }
+            }
+            if(best == -1) {
+                break;
+            }
+            writeMatches(matches[best].get(next[best]), ends[best].get(next[best]), 0, reference, readingFrame, sequenceName);
+            next[best]++;
+        }
+    }
+
+    /**
+     * @return true if a single state machine would report the match of
+     *          peptide (base 1) ending at end before that of otherPeptide ending at otherEnd
+     */
+    protected boolean isBefore(int end, int peptide, int otherEnd, int otherPeptide) {
+        if(end != otherEnd) {
+            return end < otherEnd;
+        }
+        return peptides.get(peptide - 1).length() > peptides.get(otherPeptide - 1).length();
+    }
+
+    /**
+     * write a match for every peptide in the group of the matched peptide,
+     * which all have the same sequence
+     * @param firstPeptide the (base 1) index of the first peptide of the group
+     * the other parameters are the same as writeMatch
+     */
+    protected void writeMatches(int firstPeptide, int i, int mismatches, CharSequence reference, String readingFrame, String sequenceName) {
+        writeMatches(firstPeptide, i, mismatches, reference, 0, reference.length(), readingFrame, sequenceName);
+    }
 
-                // print everything out to the files
-                outputFile.print(peptideName + "\t");
-                outputFile.print(peptideSequence + "\t");
+    /**
+     * the same as above, for a reference which is a window of the reading frame
+     * (the parameters are the same as writeMatch)
+     */
+    protected void writeMatches(int firstPeptide, int i, int mismatches, CharSequence reference, long referenceOffset, long referenceLength, String readingFrame, String sequenceName) {
+        for(int peptideIndex = firstPeptide; peptideIndex != 0; peptideIndex = groups.getNextPeptide(peptideIndex)) {
+            writeMatch(peptideIndex, i, mismatches, reference, referenceOffset, referenceLength, readingFrame, sequenceName);
+        }
+    }
 
-                outputFile.print(sequenceName + "\t" + startRTP + "\t" + endRTP + "\t" + strand + "\t" + readingFrame + "\t" + reverseTranslatedPeptide + "\t");
-                outputFile.print(startEpst + "\t" + endEpst + "\t" + epst + "\t" + epstLength + "\t" + translatedEpst + "\t");
-                outputFile.print(startCodon + "\t" + matchedPeptide.probability + "\t" + matchedPeptide.count);
-                outputFile.println();
+    /**
+     * calculate the coordinates and epst for a single peptide match
+     * and append it to the output files
+     * @param peptideIndex the (base 1) index of the matched peptide
+     * @param i the position of the last residue of the match within the translated sequence
+     * @param reference the untranslated reference DNA sequence
+     * @param readingFrame the reading frame from which this sequence was translated
+     * @param sequenceName the name of this peptide sequence
+     */
+    protected void writeMatch(int peptideIndex, int i, CharSequence reference, String readingFrame, String sequenceName) {
+        writeMatch(peptideIndex, i, 0, reference, readingFrame, sequenceName);
+    }
 
-                outputGff3File.print(sequenceName + "\t" + "ProteogenomicMapping,RTP" + "\t" + "region" + "\t" + startRTP + "\t" + endRTP + "\t");
-                outputGff3File.print("." + "\t" + strand + "\t" + "." + "\t" + "ID=" + peptideName + "; Name=" + peptideName);
-                outputGff3File.println();
+    /**
+     * calculate the coordinates and epst for a single peptide match
+     * and append it to the output files
+     * @param mismatches the number of residues of the match which are substituted,
+     *          only written when there is a mismatch search
+     * the other parameters are the same as above
+     */
+    protected void writeMatch(int peptideIndex, int i, int mismatches, CharSequence reference, String readingFrame, String sequenceName) {
+        writeMatch(peptideIndex, i, mismatches, reference, 0, reference.length(), readingFrame, sequenceName);
+    }
 
-                outputGff3File.print(sequenceName + "\t" + "ProteogenomicMapping,ePST" + "\t" + "region" + "\t" + startEpst + "\t" + endEpst + "\t");
-                outputGff3File.print("." + "\t" + strand + "\t" + "." + "\t" + "ID=" + peptideName + "; Name=" + peptideName);
-                outputGff3File.println();
+    /**
+     * calculate the coordinates and epst for a single peptide match
+     * and append it to the output files
+     * @param reference the untranslated reference DNA sequence, or a window of it
+     *          (see mapWindows), in which case i is the position within the window
+     * @param referenceOffset the position of the window within the reference
+     * @param referenceLength the length of the whole reference
+     * the other parameters are the same as above
+     */
+    protected void writeMatch(int peptideIndex, int i, int mismatches, CharSequence reference, long referenceOffset, long referenceLength, String readingFrame, String sequenceName) {
 
+        // peptideIndex-1 because the peptide indices are base 1
+        int length = peptides.get(peptideIndex - 1).length();
 
-                outputFastaFile.println(">" + peptideName);
-                outputFastaFile.println(epst);
+        // the end position of the reverse translated peptide
+        // i*3 currently points to the beginning of the stop codon
+        // before accounting for reading frame
+        long endRTP = i * 3;
+        
+        // adjust endRTP so that it points to the end of the stop codon
+        endRTP += 3;
+
+        // multiply by three because the peptide is a protein
+        length *= 3;
+        long startRTP = endRTP - length;
+
+        // find the actual epst
+        long startEpst = startRTP;
+        long endEpst = endRTP;
+
+        // find the epst
+        IntWrapper start = new IntWrapper((int)startRTP);
+        IntWrapper end = new IntWrapper((int)endRTP);
+        findEpst(reference, (int)startRTP, (int)endRTP, start, end);
+        startEpst = start.value;
+        endEpst = end.value;
+
+        // the rtp and epst are written from the reference, by their positions in it
+        int referenceStartRTP = (int)startRTP;
+        int referenceEndRTP = (int)endRTP;
+
+        // the positions within the whole reference, when it is a window
+        startRTP += referenceOffset;
+        endRTP += referenceOffset;
+        startEpst += referenceOffset;
+        endEpst += referenceOffset;
+
+        // adjust the coordinates for the reading frame
+        String strand = "+";
+        if(readingFrame.startsWith("R")) { // reverse reading frame
+            strand = "-";
+
+            // flip the coordinates if on the reverse strand
+            startRTP = referenceLength - startRTP;
+            endRTP = referenceLength - endRTP;
+            startEpst = referenceLength - startEpst;
+            endEpst = referenceLength - endEpst;
+
+            /**
+             * because coordinates for the "start" of the reverse strand are
+             * at the end of the sequence, to keep the coordinates relative
+             * to the positive strand, there is no need to correct the coordinates
+             */
+//                    if(readingFrame.substring(1).equals("2")) {
+//                        startRTP--; endRTP--;
+//                        startEpst--; endEpst--;
+//                    } else if(readingFrame.substring(1).equals("3")) {
+//                        startRTP-=2; endRTP-=2;
+//                        startEpst-=2; endEpst-=2;
+//                    }
+        } else { // positive strand
+            if(readingFrame.substring(1).equals("2")) {
+                startRTP++; endRTP++;
+                startEpst++; endEpst++;
+            } else if(readingFrame.substring(1).equals("3")) {
+                startRTP+=2; endRTP+=2;
+                startEpst+=2; endEpst+=2;
             }
-	}
+        }
+        
+        // clamp the bounds
+        if (startRTP < 0) {
+            startRTP = 0;
+        }
+
+        if (endRTP >= referenceLength) {
+            endRTP = referenceLength - 1;
+        }
+        if (startEpst < 0) {
+            startEpst = 0;
+        }
+
+        if (endEpst >= referenceLength) {
+            endEpst = referenceLength - 1;
+        }
+
+        // add one to start and end values because sequences are base 1
+        startRTP++;
+        // for some reason?? endRTP is already correct??
+        //endRTP++;
+        startEpst++;
+        endEpst++;
+
+        // the match is formatted and written by the output files (see OutputFiles)
+        addMatch(new PeptideMatch(peptideIndex, sequenceName, readingFrame, strand,
+                startRTP, endRTP, startEpst, endEpst,
+                reference, referenceStartRTP, referenceEndRTP, start.value, end.value + 1, mismatches));
     }
 
 //    /**
@@ -342,7 +1208,7 @@ public class Mapper {
 //     * @param endEpst a return paramter that will have the coordinates of the end of the epst
 //     * @return the string representation of the complete epst
 //     */
-//    protected String findEpst(String reference, int startRTP, int endRTP, IntWrapper startEpst, IntWrapper endEpst) {
+//    protected String findEpst(CharSequence reference, int startRTP, int endRTP, IntWrapper startEpst, IntWrapper endEpst) {
 //
 //        // check for the codons hack
 //        if(codons > 0) {
@@ -365,20 +1231,23 @@ public class Mapper {
      * @param endRTP the end of the reverse translated peptide
      * @param startEpst a return parameter that will have the coordinates of the start of the epst
      * @param endEpst a return paramter that will have the coordinates of the end of the epst
-     * @return the string representation of the complete epst
+     * (the last nucleotide of the epst, which is not copied out of the reference)
      */
-    protected String findEpst(String reference, int startRTP, int endRTP, IntWrapper startEpst, IntWrapper endEpst) {
+    protected void findEpst(CharSequence reference, int startRTP, int endRTP, IntWrapper startEpst, IntWrapper endEpst) {
 
         // check the mode
         switch(mode) {
             case Eukaryote:
-                return findEpstEukaryote(reference, startRTP, endRTP, startEpst, endEpst);
+                findEpstEukaryote(reference, startRTP, endRTP, startEpst, endEpst);
+                break;
             case Codon:
-                return findEpstCodon(reference, startRTP, endRTP, startEpst, endEpst);
+                findEpstCodon(reference, startRTP, endRTP, startEpst, endEpst);
+                break;
             case GeneSplicer:
-                return findEpstGeneSplicer(reference, startRTP, endRTP, startEpst, endEpst);
+                findEpstGeneSplicer(reference, startRTP, endRTP, startEpst, endEpst);
+                break;
             default:
-                return findEpstProkaryote(reference, startRTP, endRTP, startEpst, endEpst);
+                findEpstProkaryote(reference, startRTP, endRTP, startEpst, endEpst);
         }
     }
 
@@ -387,7 +1256,7 @@ public class Mapper {
      * of the start and end of the rtp by a given number of codons.
      * the paramters are the same as findEpst
      */
-    protected String findEpstCodon(String reference, int startRTP, int endRTP, IntWrapper startEpst, IntWrapper endEpst) {
+    protected void findEpstCodon(CharSequence reference, int startRTP, int endRTP, IntWrapper startEpst, IntWrapper endEpst) {
         // update the start and end positions of the epst
         startEpst.value -= 3 * codons;
         endEpst.value += 3 * codons;
@@ -400,9 +1269,6 @@ public class Mapper {
 	if (endEpst.value >= reference.length()) {
 		endEpst.value = reference.length() - 1;
 	}
-
-        String epst = reference.substring(startEpst.value, endEpst.value + 1);
-        return epst;
     }
 
     /**
@@ -413,36 +1279,34 @@ public class Mapper {
      *
      * find endEpst by stepping forward from endRTP until encountering an in-frame stop codon
      */
-    protected String findEpstProkaryote(String reference, int startRTP, int endRTP, IntWrapper startEpst, IntWrapper endEpst) {
+    protected void findEpstProkaryote(CharSequence reference, int startRTP, int endRTP, IntWrapper startEpst, IntWrapper endEpst) {
+        // the steps are looked up in the codon index of the reference,
+        // so they do not walk the open reading frame codon by codon
+        markCodons(reference);
+
         // find startEpst
 
         // step backward from startRTP until encountering an in-frame stop codon
-        int inframeStop = startRTP;
-        for(; inframeStop > 0; inframeStop -= 3) {
-            if(contains(codeTable.getEndCodons(), reference, inframeStop)) {
-                break;
-            }
+        // (a stop at the very beginning of the reference is not checked)
+        int inframeStop = codonIndex.previous(Translator.stopCodon, startRTP);
+        if(inframeStop <= 0) {
+            inframeStop = startRTP % 3 == 0 ? 0 : startRTP % 3 - 3;
         }
 
         // step forward from inframeStop until encountering an in-frame start codon
         // but only step forward until startRTP
-        for(startEpst.value = inframeStop; startEpst.value < startRTP; startEpst.value += 3) {
-            if(contains(codeTable.getStartCodons(), reference, startEpst.value)) {
-                break;
-            }
-        }
+        startEpst.value = codonIndex.next(Translator.startCodon, Math.max(inframeStop, startRTP % 3));
 
         // if no inframe-start codon was encountered when stepping forward
         // use the start of the reverse translated peptide
-        if(startEpst.value >= startRTP) {
+        if(startEpst.value < 0 || startEpst.value >= startRTP) {
             startEpst.value = startRTP;
         }
 
         // find the stop by going forward to the first in-frame stop
-        for(endEpst.value = endRTP; endEpst.value < reference.length(); endEpst.value += 3) {
-            if(contains(codeTable.getEndCodons(), reference, endEpst.value)) {
-                break;
-            }
+        endEpst.value = codonIndex.next(Translator.stopCodon, endRTP);
+        if(endEpst.value < 0) {
+            endEpst.value = reference.length();
         }
 
         // endEpst is pointing to the beginning of the stop codon
@@ -458,11 +1322,6 @@ public class Mapper {
         if(endEpst.value >= reference.length()) {
             endEpst.value = reference.length() - 1;
         }
-
-        // and find the epst
-        String epst = reference.substring(startEpst.value, endEpst.value + 1);
-
-        return epst;
     }
 
     /**
@@ -474,7 +1333,7 @@ public class Mapper {
      *
      * the parameters are the same as findEpst
      */
-    protected String findEpstEukaryote(String reference, int startRTP, int endRTP, IntWrapper startEpst, IntWrapper endEpst) {
+    protected void findEpstEukaryote(CharSequence reference, int startRTP, int endRTP, IntWrapper startEpst, IntWrapper endEpst) {
         // use frameCounter to detect whether or not we are inframe with the reverse translated peptide
         int frameCounter = 0;
 
@@ -483,11 +1342,11 @@ public class Mapper {
             // only check in-frame codons for starts or stops
             if(frameCounter % 3 == 0) {
                 // stop
-                if(contains(codeTable.getEndCodons(), reference, startEpst.value)) {
+                if(isCodon(Translator.stopCodon, reference, startEpst.value)) {
                     break;
                 }
                 // start
-                if(contains(codeTable.getStartCodons(), reference, startEpst.value)) {
+                if(isCodon(Translator.startCodon, reference, startEpst.value)) {
                     break;
                 }
             }
@@ -506,7 +1365,7 @@ public class Mapper {
             // only check for in-frame stop codons
             if(frameCounter % 3 == 0) {
                 // stop codon
-                if(contains(codeTable.getEndCodons(), reference, endEpst.value)) {
+                if(isCodon(Translator.stopCodon, reference, endEpst.value)) {
                     break;
                 }
             }
@@ -524,10 +1383,6 @@ public class Mapper {
         if(endEpst.value >= reference.length()) {
             endEpst.value = reference.length() - 1;
         }
-
-        // and find the epst
-        String epst = reference.substring(startEpst.value, endEpst.value + 1);
-        return epst;
     }
 
     /**
@@ -539,7 +1394,7 @@ public class Mapper {
      *
      * the parameters are the same as findEpst
      */
-    protected String findEpstGeneSplicer(String reference, int startRTP, int endRTP, IntWrapper startEpst, IntWrapper endEpst) {
+    protected void findEpstGeneSplicer(CharSequence reference, int startRTP, int endRTP, IntWrapper startEpst, IntWrapper endEpst) {
         // use frameCounter to detect whether or not we are inframe with the reverse translated peptide
         int frameCounter = 0;
 
@@ -548,11 +1403,11 @@ public class Mapper {
             // only check in-frame codons for starts or stops
             if(frameCounter % 3 == 0) {
                 // stop
-                if(contains(codeTable.getEndCodons(), reference, startEpst.value)) {
+                if(isCodon(Translator.stopCodon, reference, startEpst.value)) {
                     break;
                 }
                 // start
-                if(contains(codeTable.getStartCodons(), reference, startEpst.value)) {
+                if(isCodon(Translator.startCodon, reference, startEpst.value)) {
                     break;
                 }
             }
@@ -571,7 +1426,7 @@ public class Mapper {
             // only check for in-frame stop codons
             if(frameCounter % 3 == 0) {
                 // stop codon
-                if(contains(codeTable.getEndCodons(), reference, endEpst.value)) {
+                if(isCodon(Translator.stopCodon, reference, endEpst.value)) {
                     break;
                 }
             }
@@ -589,12 +1444,36 @@ public class Mapper {
         if(endEpst.value >= reference.length()) {
             endEpst.value = reference.length() - 1;
         }
+    }
+
 
-        // and find the epst
-        String epst = reference.substring(startEpst.value, endEpst.value + 1);
-        return epst;
+    /**
+     * check if the codon beginning at position of the reference is a start or
+     * stop codon.  the codons of the whole reference are marked at once, the
+     * first time it is checked, so each check is a lookup in the marks
+     * @param codonClass Translator.startCodon or Translator.stopCodon
+     * @param reference the (reading frame adjusted) reference DNA sequence
+     * @param position the start position of the codon within the reference
+     * @return true if the codon at position is of the given class
+     */
+    protected boolean isCodon(byte codonClass, CharSequence reference, int position) {
+        markCodons(reference);
+        if(position < 0 || position >= reference.length()) {
+            return false;
+        }
+        return (codonMarks[position] & codonClass) != 0;
     }
 
+    /**
+     * mark and index the codons of the reference, unless they are already
+     */
+    protected void markCodons(CharSequence reference) {
+        if(reference != markedReference) {
+            codonMarks = translator.markCodons(reference, codonMarks);
+            codonIndex.index(codonMarks, reference.length());
+            markedReference = reference;
+        }
+    }
 
     /**
      * check if the sequence beginning at position of peptide is within this set.
@@ -605,10 +1484,10 @@ public class Mapper {
      * @param position the start position within the peptide sequence
      * @return if the substring of peptide starting at position is within the set
      */
-    protected boolean contains(Set<String> set, String reference, int position) {
+    protected boolean contains(Set<String> set, CharSequence reference, int position) {
         for(String setString : set) {
             int stopPosition = Math.min(reference.length(), position + setString.length());
-            String referenceString = reference.substring(position, stopPosition);
+            String referenceString = reference.subSequence(position, stopPosition).toString();
             if(referenceString.equals(setString)) {
                 return true;
             }
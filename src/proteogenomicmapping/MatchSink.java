@@ -0,0 +1,29 @@
+package proteogenomicmapping;
+
+import java.io.IOException;
+
+/**
+ * Receives the matches of a mapper (see Mapper.addMatchSink), for using
+ * the matches without reading them back from the output files.
+ *
+ * While mapping, the matches are handed to the sinks by the thread of the
+ * match writer, in the order of the output files.  The mapper waits when
+ * the sinks fall behind, so a sink which is slow to take a match holds
+ * back the search rather than letting the matches pile up in memory.
+ * @author Brandon
+ */
+public interface MatchSink {
+
+    /**
+     * take the next match.  the sink may keep the match while mapping; a match
+     * found outside of Mapper.map holds a reference buffer which is reused
+     * once this returns, so keep match.copy() instead
+     * @param match the match
+     */
+    void match(PeptideMatch match);
+
+    /**
+     * called once, after the last match of the mapping
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,131 @@
+package proteogenomicmapping;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands the matches of a mapper to its output files and other sinks on a
+ * thread of its own, so the search does not wait for the output to be
+ * formatted and written.
+ *
+ * The matches are handed over through a bounded queue, so when the output
+ * falls behind, the search waits for it rather than holding every match
+ * in memory.  The matches are handed over in the order they are added.
+ * @author Brandon
+ */
+public class MatchWriter implements Runnable {
+
+    // <editor-fold defaultstate="collapsed" desc="Fields">
+    /**
+     * the number of matches which may wait to be taken
+     */
+    public static final int defaultCapacity = 4096;
+
+    /**
+     * added after the last match, to stop the thread
+     */
+    protected static final PeptideMatch lastMatch = new PeptideMatch(0, "", "", "", 0, 0, 0, 0, "", 0, 0, 0, 0, 0);
+
+    /**
+     * the sinks which take the matches, such as the output files of the mapper
+     */
+    protected List<MatchSink> sinks;
+
+    protected BlockingQueue<PeptideMatch> queue;
+    protected Thread thread;
+
+    /**
+     * the first error of a sink taking a match, after which the rest are dropped
+     */
+    protected volatile Throwable failure;
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Constructors">
+    /**
+     * start the thread which hands over the matches
+     * @param sinks the sinks which take the matches
+     * @param capacity the number of matches which may wait to be taken
+     */
+    public MatchWriter(List<MatchSink> sinks, int capacity) {
+        this.sinks = sinks;
+        this.queue = new ArrayBlockingQueue<PeptideMatch>(capacity);
+        this.thread = new Thread(this, "MatchWriter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    // </editor-fold>
+
+    /**
+     * add a match for the sinks, waiting while the queue is full
+     * @param match the match
+     */
+    public void add(PeptideMatch match) {
+        if(failure != null) {
+            throw new RuntimeException("Writing the output failed", failure);
+        }
+        put(match);
+    }
+
+    /**
+     * hand the matches to the sinks, until the last match
+     */
+    public void run() {
+        try {
+            for(PeptideMatch match = queue.take(); match != lastMatch; match = queue.take()) {
+                if(failure == null) {
+                    try {
+                        for(MatchSink sink : sinks) {
+                            sink.match(match);
+                        }
+                    } catch (Throwable ex) {
+                        // an error of a sink must not stop the thread either,
+                        // or adding to the full queue would wait forever
+                        failure = ex;
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            failure = ex;
+        }
+    }
+
+    /**
+     * wait for every match added to be taken by the sinks, and stop the thread
+     * @throws IOException if a sink failed to take a match
+     */
+    public void close() throws IOException {
+        put(lastMatch);
+        join();
+        if(failure != null) {
+            throw new IOException("Writing the output failed: " + failure);
+        }
+    }
+
+    /**
+     * stop the thread after a failure of the search, without waiting for the
+     * matches which have not been taken yet
+     */
+    public void abort() {
+        queue.clear();
+        put(lastMatch);
+        join();
+    }
+
+    protected void put(PeptideMatch match) {
+        try {
+            queue.put(match);
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    protected void join() {
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package proteogenomicmapping;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Search for the peptides which match a protein sequence with at most one
+ * substituted residue, e.g. because of a sequencing error or a SNP.
+ *
+ * Each peptide is split into two halves.  If a peptide matches with only one
+ * substitution, one of its halves must match exactly, so a state machine of
+ * the halves (the seeds) finds every place a peptide could match, and only
+ * those places are compared to the whole peptide.
+ * @author Brandon
+ */
+public class MismatchSearch {
+
+    // <editor-fold defaultstate="collapsed" desc="Fields">
+    /**
+     * the most substitutions a match can have
+     */
+    public static final int maxMismatches = 1;
+
+    /**
+     * the peptides, and their sequences
+     */
+    List<BioSequence> peptides;
+    String[] sequences;
+
+    /**
+     * the peptides with the same sequence.  only the first peptide of each
+     * group is searched for, and stands for the whole group
+     */
+    PeptideGroups groups;
+
+    /**
+     * the state machine of the seeds.  each distinct seed is one pattern,
+     * so a seed shared by several peptides is never lost
+     */
+    StateMachine seedStateMachine;
+
+    /**
+     * the length of each seed, by its (base 0) index
+     */
+    int[] seedLengths;
+
+    /**
+     * the occurrences of the seeds in the peptides, as a linked list for each
+     * seed: firstOccurrences[seed] is the first occurrence of the seed (or -1),
+     * and nextOccurrences[occurrence] the next occurrence of the same seed
+     */
+    int[] firstOccurrences;
+    int[] nextOccurrences;
+
+    /**
+     * the (base 1) peptide index and the offset of the seed within the peptide
+     * for each occurrence
+     */
+    int[] occurrencePeptides;
+    int[] occurrenceOffsets;
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Constructors">
+    /**
+     * @param peptides the peptides for which to search
+     * @param equivalences the classes of equivalent residues (see StateMachine.getResidueClasses)
+     */
+    public MismatchSearch(List<BioSequence> peptides, String equivalences) throws FileNotFoundException, IOException {
+        this.peptides = peptides;
+        char[] residueClasses = StateMachine.getResidueClasses(equivalences);
+
+        // split every peptide into its seeds, and number the distinct seeds.
+        // equivalent seeds end in the same state, so they are the same seed
+        List<BioSequence> seeds = new ArrayList<BioSequence>();
+        Map<String, Integer> seedNumbers = new HashMap<String, Integer>();
+        IntList seedLengthList = new IntList();
+        IntList firstOccurrenceList = new IntList();
+        IntList nextOccurrenceList = new IntList();
+        IntList occurrencePeptideList = new IntList();
+        IntList occurrenceOffsetList = new IntList();
+
+        int[] order = StateMachine.sortPeptides(peptides, residueClasses);
+        groups = new PeptideGroups(peptides, order, residueClasses);
+
+        sequences = new String[peptides.size()];
+        for(int i = 0; i < peptides.size(); i++) {
+            sequences[i] = peptides.get(i).toString();
+        }
+        for(int k = 0; k < order.length; k++) {
+            // only search for the first of a group of identical peptides
+            if(k > 0 && StateMachine.compare(residueClasses, peptides.get(order[k - 1]), peptides.get(order[k])) == 0) {
+                continue;
+            }
+            int i = order[k];
+            int length = sequences[i].length();
+
+            // a peptide with a single residue can only match exactly
+            int half = length / 2;
+            int[] offsets = half == 0 ? new int[] { 0, length } : new int[] { 0, half, length };
+            for(int j = 0; j + 1 < offsets.length; j++) {
+                String seedSequence = sequences[i].substring(offsets[j], offsets[j + 1]);
+                StringBuilder folded = new StringBuilder(seedSequence.length());
+                for(int r = 0; r < seedSequence.length(); r++) {
+                    folded.append(StateMachine.fold(residueClasses, seedSequence.charAt(r)));
+                }
+
+                Integer seedNumber = seedNumbers.get(folded.toString());
+                if(seedNumber == null) {
+                    seedNumber = seeds.size();
+                    seedNumbers.put(folded.toString(), seedNumber);
+                    BioSequence seed = new BioSequence("seed-" + (seedNumber + 1));
+                    seed.append(seedSequence);
+                    seeds.add(seed);
+                    seedLengthList.add(seedSequence.length());
+                    firstOccurrenceList.add(-1);
+                }
+
+                // add the occurrence to the front of the list of the seed
+                int occurrence = occurrencePeptideList.size();
+                occurrencePeptideList.add(i + 1);
+                occurrenceOffsetList.add(offsets[j]);
+                nextOccurrenceList.add(firstOccurrenceList.get(seedNumber));
+                firstOccurrenceList.set(seedNumber, occurrence);
+            }
+        }
+
+        seedLengths = seedLengthList.toArray();
+        firstOccurrences = firstOccurrenceList.toArray();
+        nextOccurrences = nextOccurrenceList.toArray();
+        occurrencePeptides = occurrencePeptideList.toArray();
+        occurrenceOffsets = occurrenceOffsetList.toArray();
+
+        seedStateMachine = new StateMachine(seeds, equivalences);
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Search">
+    /**
+     * find every peptide which matches the first limit residues of the protein
+     * sequence with at most maxMismatches substitutions.  the matches are in the
+     * same order as a state machine would find them: by the position of the
+     * end of the match, the longest peptide first, then by the peptide index
+     * @param protein the translated sequence to search
+     * @param limit the number of residues to search
+     * @param ends receives the position of the last residue of each match
+     * @param matches receives the (base 1) index of the peptide of each match,
+     *          the first peptide of its group (see getGroups)
+     * @param mismatches receives the number of substitutions of each match
+     */
+    public void search(CharSequence protein, int limit, IntList ends, IntList matches, IntList mismatches) {
+        IntList foundEnds = new IntList();
+        IntList foundMatches = new IntList();
+        IntList foundMismatches = new IntList();
+
+        int state = 0;
+        for(int i = 0; i < limit; i++) {
+            state = seedStateMachine.getNextState(state, protein.charAt(i));
+            for(int match = seedStateMachine.getFirstMatch(state); match != 0; match = seedStateMachine.getOutputLink(match)) {
+                int seed = seedStateMachine.getPattern(match) - 1;
+                for(int occurrence = firstOccurrences[seed]; occurrence != -1; occurrence = nextOccurrences[occurrence]) {
+                    int peptideIndex = occurrencePeptides[occurrence];
+                    int offset = occurrenceOffsets[occurrence];
+                    String sequence = sequences[peptideIndex - 1];
+
+                    // the peptide has to fit within the searched residues
+                    int start = i - seedLengths[seed] - offset + 1;
+                    int end = start + sequence.length() - 1;
+                    if(start < 0 || end >= limit) {
+                        continue;
+                    }
+
+                    int count = countMismatches(sequence, 0, sequence.length(), protein, start);
+                    if(count > maxMismatches) {
+                        continue;
+                    }
+
+                    // when the first half matches exactly, its seed has
+                    // already found the match, so it is only found once
+                    if(offset > 0 && countMismatches(sequence, 0, offset, protein, start) == 0) {
+                        continue;
+                    }
+
+                    foundEnds.add(end);
+                    foundMatches.add(peptideIndex);
+                    foundMismatches.add(count);
+                }
+            }
+        }
+
+        // matches are found at the end of a seed, not the end of the peptide,
+        // so put them back in order
+        final int[] sortEnds = foundEnds.toArray();
+        final int[] sortMatches = foundMatches.toArray();
+        Integer[] order = new Integer[sortEnds.length];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer first, Integer second) {
+                if(sortEnds[first] != sortEnds[second]) {
+                    return sortEnds[first] < sortEnds[second] ? -1 : 1;
+                }
+                int firstLength = sequences[sortMatches[first] - 1].length();
+                int secondLength = sequences[sortMatches[second] - 1].length();
+                if(firstLength != secondLength) {
+                    return firstLength > secondLength ? -1 : 1;
+                }
+                return sortMatches[first] - sortMatches[second];
+            }
+        });
+
+        for(int i = 0; i < order.length; i++) {
+            ends.add(sortEnds[order[i]]);
+            matches.add(sortMatches[order[i]]);
+            mismatches.add(foundMismatches.get(order[i]));
+        }
+    }
+
+    /**
+     * count the residues of the peptide from start to limit which do not
+     * match the protein.  residues match if the state machine gives them the
+     * same symbol, so equivalent residues match each other
+     * @param sequence the peptide sequence
+     * @param start the first residue of the peptide to compare
+     * @param limit the residue after the last one to compare
+     * @param protein the translated sequence
+     * @param position the position of the first residue of the peptide within the protein
+     * @return the number of residues which do not match, at most maxMismatches + 1
+     */
+    protected int countMismatches(String sequence, int start, int limit, CharSequence protein, int position) {
+        int count = 0;
+        for(int j = start; j < limit && count <= maxMismatches; j++) {
+            int symbol = seedStateMachine.getSymbol(sequence.charAt(j));
+            if(symbol == 0 || symbol != seedStateMachine.getSymbol(protein.charAt(position + j))) {
+                count++;
+            }
+        }
+        return count;
+    }// </editor-fold>
+
+    /**
+     * @return the peptides with the same sequence, which are reported
+     *          along with the first peptide of the group
+     */
+    public PeptideGroups getGroups() {
+        return groups;
+    }
+
+    /**
+     * summarize the size of the seed state machine
+     * @return a one line report of the seeds and their state machine
+     */
+    public String getStatistics() {
+        return "mismatch search: " + seedLengths.length + " seeds, " + seedStateMachine.getStatistics();
+    }
+}
@@ -0,0 +1,189 @@
+package proteogenomicmapping;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The output files of a mapper: a tab separated file with a line for each
+ * match, a fasta file with the epst of each match and a gff3 file with the
+ * rtp and the epst of each match.  The files are written as the matches are
+ * taken, like any other sink of the mapper (see MatchSink).
+ * @author Brandon
+ */
+public class OutputFiles implements MatchSink {
+
+    // <editor-fold defaultstate="collapsed" desc="Fields">
+    AsciiWriter outputFile;
+    AsciiWriter outputFastaFile;
+    AsciiWriter outputGff3File;
+
+    /**
+     * the peptides, and the groups of peptides with the same sequence, whose
+     * probability and count are written for a match
+     */
+    List<BioSequence> peptides;
+    PeptideGroups groups;
+
+    /**
+     * translates the epst of each match
+     */
+    Translator translator;
+
+    /**
+     * true if the output file has a last column with the number of mismatches
+     */
+    boolean mismatchColumn;
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Constructors">
+    /**
+     * create (or empty) the output files
+     * @param outputFilename the path of the tab separated file
+     * @param outputFastaFilename the path of the fasta file
+     * @param outputGff3Filename the path of the gff3 file
+     * @param peptides the peptides which are mapped
+     * @param groups the groups of peptides with the same sequence, or null
+     * @param translator translates the epst of each match
+     * @param mismatchColumn true to write the number of mismatches of each match
+     */
+    public OutputFiles(String outputFilename, String outputFastaFilename, String outputGff3Filename,
+            List<BioSequence> peptides, PeptideGroups groups, Translator translator, boolean mismatchColumn) throws IOException {
+        // if a file can not be opened, close the ones which were, since there
+        // is no output files to close them through
+        this.outputFile = new AsciiWriter(outputFilename);
+        try {
+            this.outputFastaFile = new AsciiWriter(outputFastaFilename);
+            try {
+                this.outputGff3File = new AsciiWriter(outputGff3Filename);
+            } catch (IOException ex) {
+                outputFastaFile.close();
+                throw ex;
+            }
+        } catch (IOException ex) {
+            outputFile.close();
+            throw ex;
+        }
+        this.peptides = peptides;
+        this.groups = groups;
+        this.translator = translator;
+        this.mismatchColumn = mismatchColumn;
+    }
+    // </editor-fold>
+
+    /**
+     * print the header for the output file
+     */
+    public void printHeaders() {
+        outputFile.print("Peptide ID\tPeptide Sequence\tGenome ID\tStart\tEnd\tStrand\tReading Frame\t");
+        outputFile.print("RT Peptide Sequence\tePST Start\tePST End\tePST\tePST Length\tTranslated ePST\t");
+        outputFile.print("Start Codon\tPeptide Probability\tPeptide Count");
+        if(mismatchColumn) {
+            outputFile.print("\tMismatches");
+        }
+        outputFile.println();
+
+        outputGff3File.println("##gff-version 3");
+    }
+
+    /**
+     * append a match to the output files
+     * @param match the match
+     */
+    public void match(PeptideMatch match) {
+        int peptideIndex = match.getPeptideIndex();
+        BioSequence matchedPeptide = peptides.get(peptideIndex - 1);
+        String peptideName = matchedPeptide.getId();
+        String peptideSequence = matchedPeptide.toString();
+
+        String sequenceName = match.getSequenceName();
+        String readingFrame = match.getReadingFrame();
+        String strand = match.getStrand();
+        long startRTP = match.getStartRTP();
+        long endRTP = match.getEndRTP();
+        long startEpst = match.getStartEpst();
+        long endEpst = match.getEndEpst();
+
+        // the rtp and epst are written straight from the reference
+        CharSequence reference = match.getReference();
+        int referenceStartEpst = match.getReferenceStartEpst();
+        int referenceEndEpst = match.getReferenceEndEpst();
+
+        // the probability and count are those of all the peptides with the same sequence
+        double probability = matchedPeptide.probability;
+        int count = matchedPeptide.count;
+        if(groups != null) {
+            probability = groups.getProbability(peptideIndex);
+            count = groups.getCount(peptideIndex);
+        }
+
+        // print everything out to the files, one field at a time.
+        // the epst is translated straight into the output file
+        outputFile.printField(peptideName);
+        outputFile.printField(peptideSequence);
+        outputFile.printField(sequenceName);
+        outputFile.printField(startRTP);
+        outputFile.printField(endRTP);
+        outputFile.printField(strand);
+        outputFile.printField(readingFrame);
+        outputFile.print(reference, match.getReferenceStartRTP(), match.getReferenceEndRTP());
+        outputFile.print('\t');
+        outputFile.printField(startEpst);
+        outputFile.printField(endEpst);
+        outputFile.print(reference, referenceStartEpst, referenceEndEpst);
+        outputFile.print('\t');
+        outputFile.printField(match.getEpstLength());
+        outputFile.printTranslation(translator, reference, referenceStartEpst, referenceEndEpst);
+        outputFile.print('\t');
+        if(match.hasStartCodon()) {
+            outputFile.print(reference, referenceStartEpst, referenceStartEpst + 3);
+        } else {
+            outputFile.print('-');
+        }
+        outputFile.print('\t');
+        outputFile.printField(probability);
+        outputFile.print(count);
+        if(mismatchColumn) {
+            outputFile.print('\t');
+            outputFile.print(match.getMismatches());
+        }
+        outputFile.println();
+
+        printGff3(sequenceName, "ProteogenomicMapping,RTP", startRTP, endRTP, strand, peptideName);
+        printGff3(sequenceName, "ProteogenomicMapping,ePST", startEpst, endEpst, strand, peptideName);
+
+        outputFastaFile.print('>');
+        outputFastaFile.println(peptideName);
+        outputFastaFile.print(reference, referenceStartEpst, referenceEndEpst);
+        outputFastaFile.println();
+    }
+
+    /**
+     * append a region to the gff3 file
+     */
+    protected void printGff3(String sequenceName, String source, long start, long end, String strand, String peptideName) {
+        outputGff3File.printField(sequenceName);
+        outputGff3File.printField(source);
+        outputGff3File.print("region\t");
+        outputGff3File.printField(start);
+        outputGff3File.printField(end);
+        outputGff3File.print(".\t");
+        outputGff3File.print(strand);
+        outputGff3File.print("\t.\tID=");
+        outputGff3File.print(peptideName);
+        outputGff3File.print("; Name=");
+        outputGff3File.println(peptideName);
+    }
+
+    /**
+     * close all of the output files
+     * @throws IOException if writing any of them failed
+     */
+    public void close() throws IOException {
+        outputFile.close();
+        outputFastaFile.close();
+        outputGff3File.close();
+        if(outputFile.checkError() || outputFastaFile.checkError() || outputGff3File.checkError()) {
+            throw new IOException("Writing the output files failed");
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package proteogenomicmapping;
+
+import java.util.List;
+
+/**
+ * Groups of peptides with the same (or equivalent) sequence, e.g. the
+ * same peptide identified in several spectra.  A group shares one final
+ * state in the state machine, which holds the first peptide of the group;
+ * the rest of the group is linked from it, so every peptide of the group
+ * is reported for a single match.
+ *
+ * The peptides are identified by their (base 1) index in the peptide list.
+ * @author Brandon
+ */
+public class PeptideGroups {
+
+    // <editor-fold defaultstate="collapsed" desc="Fields">
+    /**
+     * the next peptide in the group of each peptide, or 0 for the last one
+     */
+    protected int[] nextPeptides;
+
+    /**
+     * the sum of the counts of the group of each peptide
+     */
+    protected int[] counts;
+
+    /**
+     * the probability that at least one of the peptides of the group of each
+     * peptide is correct, 1 - (1 - p1)(1 - p2)...
+     */
+    protected double[] probabilities;
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Constructors">
+    /**
+     * group the peptides which are next to each other in the given order
+     * and are equal according to the residue classes
+     * @param peptides the peptides
+     * @param order the (base 0) indices of the peptides, sorted so that equal
+     *          peptides are next to each other, and in their original order
+     * @param residueClasses the classes of equivalent residues
+     */
+    public PeptideGroups(List<BioSequence> peptides, int[] order, char[] residueClasses) {
+        nextPeptides = new int[peptides.size() + 1];
+        for(int k = 1; k < order.length; k++) {
+            if(StateMachine.compare(residueClasses, peptides.get(order[k - 1]), peptides.get(order[k])) == 0) {
+                nextPeptides[order[k - 1] + 1] = order[k] + 1;
+            }
+        }
+        summarize(peptides);
+    }
+
+    /**
+     * @param peptides the peptides
+     * @param nextPeptides the next peptide in the group of each peptide (see getNextPeptide)
+     */
+    public PeptideGroups(List<BioSequence> peptides, int[] nextPeptides) {
+        this.nextPeptides = nextPeptides;
+        summarize(peptides);
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Groups">
+    /**
+     * find the total count and probability of each group, and give them to
+     * every peptide of the group
+     */
+    protected void summarize(List<BioSequence> peptides) {
+        counts = new int[nextPeptides.length];
+        probabilities = new double[nextPeptides.length];
+
+        // a peptide is the first of its group if no other peptide links to it
+        boolean[] linked = new boolean[nextPeptides.length];
+        for(int peptide = 1; peptide < nextPeptides.length; peptide++) {
+            linked[nextPeptides[peptide]] = true;
+        }
+        for(int peptide = 1; peptide < nextPeptides.length; peptide++) {
+            if(!linked[peptide]) {
+                summarize(peptides, peptide);
+            }
+        }
+    }
+
+    /**
+     * find the total count and probability of the group starting at firstPeptide
+     */
+    protected void summarize(List<BioSequence> peptides, int firstPeptide) {
+        int count = 0;
+        double probability = 0;
+        for(int peptide = firstPeptide; peptide != 0; peptide = nextPeptides[peptide]) {
+            // p + q - pq is 1 - (1 - p)(1 - q), but keeps a single probability exact
+            double peptideProbability = peptides.get(peptide - 1).probability;
+            count += peptides.get(peptide - 1).count;
+            probability = peptide == firstPeptide ? peptideProbability
+                    : probability + peptideProbability - probability * peptideProbability;
+        }
+        for(int peptide = firstPeptide; peptide != 0; peptide = nextPeptides[peptide]) {
+            counts[peptide] = count;
+            probabilities[peptide] = probability;
+        }
+    }
+
+    /**
+     * add a new peptide to the end of the group of firstPeptide, or start a
+     * new group if firstPeptide is 0.  the peptides must be added in order,
+     * after the ones already in the groups
+     * @param peptides the peptides, including the new one
+     * @param firstPeptide the first peptide of the group, or 0
+     * @param peptide the new peptide
+     */
+    public void add(List<BioSequence> peptides, int firstPeptide, int peptide) {
+        if(peptide >= nextPeptides.length) {
+            int length = Math.max(peptide + 1, nextPeptides.length * 2);
+            nextPeptides = StateMachine.resize(nextPeptides, length);
+            counts = StateMachine.resize(counts, length);
+            double[] resized = new double[length];
+            System.arraycopy(probabilities, 0, resized, 0, probabilities.length);
+            probabilities = resized;
+        }
+
+        if(firstPeptide == 0) {
+            summarize(peptides, peptide);
+            return;
+        }
+
+        int last = firstPeptide;
+        while(nextPeptides[last] != 0) {
+            last = nextPeptides[last];
+        }
+        nextPeptides[last] = peptide;
+        summarize(peptides, firstPeptide);
+    }
+
+    /**
+     * shrink the groups to the given number of peptides, after adding peptides
+     */
+    public void trim(int peptideCount) {
+        nextPeptides = StateMachine.resize(nextPeptides, peptideCount + 1);
+        counts = StateMachine.resize(counts, peptideCount + 1);
+        double[] resized = new double[peptideCount + 1];
+        System.arraycopy(probabilities, 0, resized, 0, peptideCount + 1);
+        probabilities = resized;
+    }
+
+    /**
+     * <pre>
+     * for(int peptide = firstPeptide; peptide != 0; peptide = getNextPeptide(peptide)) {
+     * }
+     * </pre>
+     * @param peptide the (base 1) index of a peptide
+     * @return the next peptide with the same sequence, or 0 if there is none
+     */
+    public final int getNextPeptide(int peptide) {
+        return nextPeptides[peptide];
+    }
+
+    /**
+     * @param peptide the (base 1) index of a peptide
+     * @return the sum of the counts of the peptides with the same sequence
+     */
+    public int getCount(int peptide) {
+        return counts[peptide];
+    }
+
+    /**
+     * @param peptide the (base 1) index of a peptide
+     * @return the probability that at least one of the peptides with the same sequence is correct
+     */
+    public double getProbability(int peptide) {
+        return probabilities[peptide];
+    }// </editor-fold>
+}
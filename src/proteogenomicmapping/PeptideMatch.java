@@ -0,0 +1,218 @@
+package proteogenomicmapping;
+
+/**
+ * A match of a peptide in a reference sequence, with the coordinates of
+ * its reverse translated peptide (rtp) and epst, as it is written to the
+ * output files.  the coordinates are base 1, on the positive strand.
+ *
+ * The rtp and epst are not copied out of the reference; the match holds the
+ * (reading frame adjusted) reference and their positions within it, so they
+ * are written straight from it.  A match which outlives the reference, whose
+ * buffer is reused for the next one, keeps a copy of just the part of the
+ * reference it covers (see copy)
+ * @author Brandon
+ */
+public class PeptideMatch {
+
+    // <editor-fold defaultstate="collapsed" desc="Fields">
+    /**
+     * the (base 1) index of the matched peptide
+     */
+    protected int peptideIndex;
+
+    /**
+     * the name of the reference sequence, and the reading frame and strand of the match
+     */
+    protected String sequenceName;
+    protected String readingFrame;
+    protected String strand;
+
+    /**
+     * the coordinates of the reverse translated peptide and the epst
+     */
+    protected long startRTP;
+    protected long endRTP;
+    protected long startEpst;
+    protected long endEpst;
+
+    /**
+     * the reference holding the reverse translated peptide and the epst,
+     * and their positions within it, from the start to before the end
+     */
+    protected CharSequence reference;
+    protected int referenceStartRTP;
+    protected int referenceEndRTP;
+    protected int referenceStartEpst;
+    protected int referenceEndEpst;
+
+    /**
+     * the number of substituted residues, when there is a mismatch search
+     */
+    protected int mismatches;
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Constructors">
+    public PeptideMatch(int peptideIndex, String sequenceName, String readingFrame, String strand,
+            long startRTP, long endRTP, long startEpst, long endEpst,
+            CharSequence reference, int referenceStartRTP, int referenceEndRTP,
+            int referenceStartEpst, int referenceEndEpst, int mismatches) {
+        this.peptideIndex = peptideIndex;
+        this.sequenceName = sequenceName;
+        this.readingFrame = readingFrame;
+        this.strand = strand;
+        this.startRTP = startRTP;
+        this.endRTP = endRTP;
+        this.startEpst = startEpst;
+        this.endEpst = endEpst;
+        this.reference = reference;
+        this.referenceStartRTP = referenceStartRTP;
+        this.referenceEndRTP = referenceEndRTP;
+        this.referenceStartEpst = referenceStartEpst;
+        this.referenceEndEpst = referenceEndEpst;
+        this.mismatches = mismatches;
+    }
+    // </editor-fold>
+
+    /**
+     * @return the same match, holding a copy of just the part of the reference
+     * it covers, so it may be kept after the reference is reused
+     */
+    public PeptideMatch copy() {
+        int start = Math.min(referenceStartRTP, referenceStartEpst);
+        int end = Math.max(referenceEndRTP, referenceEndEpst);
+        ByteSequence part = new ByteSequence(end - start);
+        ByteSequence.getBytes(reference, start, end, part.getBuffer(end - start), 0);
+        part.setLength(end - start);
+        return new PeptideMatch(peptideIndex, sequenceName, readingFrame, strand,
+                startRTP, endRTP, startEpst, endEpst,
+                part, referenceStartRTP - start, referenceEndRTP - start,
+                referenceStartEpst - start, referenceEndEpst - start, mismatches);
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Getters">
+    /**
+     * @return the (base 1) index of the matched peptide
+     */
+    public int getPeptideIndex() {
+        return peptideIndex;
+    }
+
+    /**
+     * @return the name of the reference sequence
+     */
+    public String getSequenceName() {
+        return sequenceName;
+    }
+
+    /**
+     * @return the reading frame, F1, F2, F3, R1, R2 or R3
+     */
+    public String getReadingFrame() {
+        return readingFrame;
+    }
+
+    /**
+     * @return the strand, "+" or "-"
+     */
+    public String getStrand() {
+        return strand;
+    }
+
+    /**
+     * @return the start of the reverse translated peptide
+     */
+    public long getStartRTP() {
+        return startRTP;
+    }
+
+    /**
+     * @return the end of the reverse translated peptide
+     */
+    public long getEndRTP() {
+        return endRTP;
+    }
+
+    /**
+     * @return the DNA sequence onto which the peptide mapped
+     */
+    public String getReverseTranslatedPeptide() {
+        return reference.subSequence(referenceStartRTP, referenceEndRTP).toString();
+    }
+
+    /**
+     * @return the start of the epst
+     */
+    public long getStartEpst() {
+        return startEpst;
+    }
+
+    /**
+     * @return the end of the epst
+     */
+    public long getEndEpst() {
+        return endEpst;
+    }
+
+    /**
+     * @return the DNA sequence of the epst
+     */
+    public String getEpst() {
+        return reference.subSequence(referenceStartEpst, referenceEndEpst).toString();
+    }
+
+    /**
+     * @return the reference holding the reverse translated peptide and the
+     * epst, which are written from it by their positions
+     */
+    public CharSequence getReference() {
+        return reference;
+    }
+
+    public int getReferenceStartRTP() {
+        return referenceStartRTP;
+    }
+
+    public int getReferenceEndRTP() {
+        return referenceEndRTP;
+    }
+
+    public int getReferenceStartEpst() {
+        return referenceStartEpst;
+    }
+
+    public int getReferenceEndEpst() {
+        return referenceEndEpst;
+    }
+
+    /**
+     * @return the length of the epst, as written to the output file
+     */
+    public long getEpstLength() {
+        return Math.abs(startEpst - endEpst);
+    }
+
+    /**
+     * @return true if the epst starts with a codon before the rtp (see getStartCodon)
+     */
+    public boolean hasStartCodon() {
+        return startRTP != startEpst;
+    }
+
+    /**
+     * @return the codon the epst starts with, or "-" if it starts with the rtp
+     */
+    public String getStartCodon() {
+        if(hasStartCodon()) {
+            return reference.subSequence(referenceStartEpst, referenceStartEpst + 3).toString();
+        }
+        return "-";
+    }
+
+    /**
+     * @return the number of substituted residues of the match
+     */
+    public int getMismatches() {
+        return mismatches;
+    }
+    // </editor-fold>
+}
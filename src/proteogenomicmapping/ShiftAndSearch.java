@@ -0,0 +1,248 @@
+package proteogenomicmapping;
+
+/**
+ * A bit-parallel (Shift-And) search for a small set of peptides, which finds
+ * the same matches as the state machine it is built from.
+ *
+ * Every residue of every peptide is one bit, so the peptides together take
+ * a few 64 bit words.  A bit is set after reading a residue of the protein
+ * if the peptide up to that bit matches the protein up to that residue, so
+ * reading a residue is one shift, or and and per word, and a peptide matches
+ * when the bit of its last residue is set.  A peptide never crosses from one
+ * word into the next, so the words do not depend on each other.
+ * @author Brandon
+ */
+public class ShiftAndSearch {
+
+    // <editor-fold defaultstate="collapsed" desc="Fields">
+    /**
+     * the most words used for the peptides.  past this, following the
+     * transition table of the state machine is faster
+     */
+    public static final int maxWords = 2;
+
+    /**
+     * the number of bits in a word, which is also the longest peptide
+     */
+    public static final int wordSize = 64;
+
+    /**
+     * the state machine the search was built from, which maps residues to symbols
+     */
+    StateMachine stateMachine;
+
+    /**
+     * the number of words for all the peptide residues
+     */
+    int wordCount;
+
+    /**
+     * the bits of the residues with each symbol, masks[symbol * wordCount + word]
+     */
+    long[] masks;
+
+    /**
+     * the bits of the first and last residue of each peptide
+     */
+    long[] initialBits;
+    long[] finalBits;
+
+    /**
+     * the pattern of the state machine for the last residue of each peptide, by bit
+     */
+    int[] bitPatterns;
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Constructors">
+    /**
+     * lay out the peptides of the state machine (one for each state with a
+     * pattern) as bits.  the longest peptides have the lowest bits, so the
+     * matches ending at the same residue are found longest first, like the
+     * output links of the state machine
+     * @param stateMachine the state machine from which to take the peptides
+     */
+    public ShiftAndSearch(StateMachine stateMachine) {
+        this.stateMachine = stateMachine;
+
+        // find the states with patterns, by decreasing level, with a counting sort
+        int maxLevel = 0;
+        for(int state = 1; state < stateMachine.stateCount; state++) {
+            maxLevel = Math.max(maxLevel, stateMachine.levels[state]);
+        }
+        int[] levelStarts = new int[maxLevel + 2];
+        int patternCount = 0;
+        for(int state = 1; state < stateMachine.stateCount; state++) {
+            if(stateMachine.patterns[state] != -1) {
+                levelStarts[maxLevel - stateMachine.levels[state] + 1]++;
+                patternCount++;
+            }
+        }
+        for(int level = 1; level < levelStarts.length; level++) {
+            levelStarts[level] += levelStarts[level - 1];
+        }
+        int[] finalStates = new int[patternCount];
+        for(int state = 1; state < stateMachine.stateCount; state++) {
+            if(stateMachine.patterns[state] != -1) {
+                finalStates[levelStarts[maxLevel - stateMachine.levels[state]]++] = state;
+            }
+        }
+
+        wordCount = getWordCount(stateMachine);
+        masks = new long[stateMachine.alphabetSize * wordCount];
+        initialBits = new long[wordCount];
+        finalBits = new long[wordCount];
+        bitPatterns = new int[wordCount * wordSize];
+
+        // the peptides are in decreasing length, so the peptides in a word
+        // are never shorter than those in the next word
+        int offset = 0;
+        for(int finalState : finalStates) {
+            int length = stateMachine.levels[finalState];
+            if(offset % wordSize + length > wordSize) {
+                offset += wordSize - offset % wordSize;
+            }
+            setBit(initialBits, offset);
+            setBit(finalBits, offset + length - 1);
+            bitPatterns[offset + length - 1] = stateMachine.patterns[finalState];
+
+            // walk up the tree from the final state for the residues of the peptide.
+            // symbol 0 never matches, so it is left out of the masks
+            int state = finalState;
+            for(int j = length - 1; j >= 0; j--) {
+                int symbol = stateMachine.edgeSymbols[state];
+                if(symbol != 0) {
+                    masks[symbol * wordCount + (offset + j) / wordSize] |= 1L << ((offset + j) % wordSize);
+                }
+                state = stateMachine.parents[state];
+            }
+            offset += length;
+        }
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Search">
+    /**
+     * find how many words the distinct peptides of the state machine take,
+     * when they are laid out from the longest to the shortest
+     * @param stateMachine a state machine
+     * @return the number of words, or Integer.MAX_VALUE if a peptide is longer than a word
+     */
+    public static int getWordCount(StateMachine stateMachine) {
+        int[] lengthCounts = new int[wordSize + 1];
+        for(int state = 1; state < stateMachine.stateCount; state++) {
+            if(stateMachine.patterns[state] != -1) {
+                if(stateMachine.levels[state] > wordSize) {
+                    return Integer.MAX_VALUE;
+                }
+                lengthCounts[stateMachine.levels[state]]++;
+            }
+        }
+
+        int offset = 0;
+        for(int length = wordSize; length > 0; length--) {
+            for(int k = 0; k < lengthCounts[length]; k++) {
+                if(offset % wordSize + length > wordSize) {
+                    offset += wordSize - offset % wordSize;
+                }
+                offset += length;
+            }
+        }
+        return Math.max(1, (offset + wordSize - 1) / wordSize);
+    }
+
+    /**
+     * @param stateMachine a state machine
+     * @return true if the peptides of the state machine are few enough that
+     *          searching for them bit-parallel is faster than the state machine
+     */
+    public static boolean isSuitable(StateMachine stateMachine) {
+        return getWordCount(stateMachine) <= maxWords;
+    }
+
+    protected static void setBit(long[] words, int bit) {
+        words[bit / wordSize] |= 1L << (bit % wordSize);
+    }
+
+    /**
+     * search the first limit residues of the protein sequence, and collect
+     * every match in the same order as StateMachine.search
+     * @param protein the translated sequence to search
+     * @param limit the number of residues to search
+     * @param ends receives the position of the last residue of each match
+     * @param matches receives the (base 1) index of the peptide of each match
+     */
+    public void search(CharSequence protein, int limit, IntList ends, IntList matches) {
+        if(wordCount == 1) {
+            searchWord(protein, limit, ends, matches);
+            return;
+        }
+        if(wordCount == 2) {
+            searchWords(protein, limit, ends, matches);
+            return;
+        }
+
+        long[] bits = new long[wordCount];
+        for(int i = 0; i < limit; i++) {
+            int mask = stateMachine.getSymbol(protein.charAt(i)) * wordCount;
+
+            long found = 0;
+            for(int word = 0; word < wordCount; word++) {
+                bits[word] = ((bits[word] << 1) | initialBits[word]) & masks[mask + word];
+                found |= bits[word] & finalBits[word];
+            }
+
+            if(found != 0) {
+                for(int word = 0; word < wordCount; word++) {
+                    addMatches(bits[word] & finalBits[word], word, i, ends, matches);
+                }
+            }
+        }
+    }
+
+    /**
+     * the same as search, for peptides which fit in a single word
+     */
+    protected void searchWord(CharSequence protein, int limit, IntList ends, IntList matches) {
+        long bits = 0;
+        long initial = initialBits[0];
+        long last = finalBits[0];
+        for(int i = 0; i < limit; i++) {
+            bits = ((bits << 1) | initial) & masks[stateMachine.getSymbol(protein.charAt(i))];
+            if((bits & last) != 0) {
+                addMatches(bits & last, 0, i, ends, matches);
+            }
+        }
+    }
+
+    /**
+     * the same as search, for peptides which fit in two words
+     */
+    protected void searchWords(CharSequence protein, int limit, IntList ends, IntList matches) {
+        long bits = 0;
+        long nextBits = 0;
+        long initial = initialBits[0];
+        long nextInitial = initialBits[1];
+        long last = finalBits[0];
+        long nextLast = finalBits[1];
+        for(int i = 0; i < limit; i++) {
+            int mask = stateMachine.getSymbol(protein.charAt(i)) * 2;
+            bits = ((bits << 1) | initial) & masks[mask];
+            nextBits = ((nextBits << 1) | nextInitial) & masks[mask + 1];
+            if(((bits & last) | (nextBits & nextLast)) != 0) {
+                addMatches(bits & last, 0, i, ends, matches);
+                addMatches(nextBits & nextLast, 1, i, ends, matches);
+            }
+        }
+    }
+
+    /**
+     * add a match for each set bit, from the lowest bit up
+     */
+    protected void addMatches(long found, int word, int end, IntList ends, IntList matches) {
+        while(found != 0) {
+            int bit = Long.numberOfTrailingZeros(found);
+            ends.add(end);
+            matches.add(bitPatterns[word * wordSize + bit]);
+            found &= found - 1;
+        }
+    }// </editor-fold>
+}
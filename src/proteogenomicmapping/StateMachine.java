@@ -1,138 +1,593 @@
 package proteogenomicmapping;
 
-import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 /**
  * Representation of the fsm built by Aho-Corasick algorithm
+ *
+ * The states are stored as parallel primitive arrays indexed by the state
+ * number rather than as one object per state, so that very large peptide
+ * sets do not need an object and a map for every state in the tree.
  * @author bm542
  */
 public class StateMachine {
 
-    // the maximum number of edges for a node
-    public static final int maxEdges = 32;
+    // residues are mapped to symbols through a table indexed by the residue
+    // character, so only residues below this value get their own symbol
+    public static final int maxResidue = 128;
+
+    // identifies a file written by write, and the version of its layout
+    public static final int fileMagic = 0x50474d41;
+    public static final int fileVersion = 3;
+
+    // the classes of residues which match each other by default, as the
+    // mass spectrometer can not tell isoleucine from leucine
+    public static final String defaultResidueClasses = "IL";
+
+    // the size of the fixed part of the file, before the arrays
+    protected static final int fileHeaderSize = 288;
+
+    // the largest piece of a file which is mapped into memory at once
+    protected static final int maxMappedBytes = 1 << 30;
+
+    /**
+     * the number of states in the state machine
+     */
+    int stateCount;
+
+    /**
+     * the depth of each state in the tree, the root is at level 0
+     */
+    int[] levels;
+
+    /**
+     * the parent of each state in the tree
+     */
+    int[] parents;
+
+    /**
+     * the symbol on the edge from the parent of each state to the state
+     */
+    byte[] edgeSymbols;
+
+    /**
+     * the fail link of each state, which is the state for the longest
+     * proper suffix of the state that is also a prefix in the tree
+     */
+    int[] failLinks;
 
     /**
-     * the states in the state machine
+     * a mapping from a residue character to its symbol in the compiled machine.
+     * symbol 0 is reserved for residues which do not appear in any peptide,
+     * so following it from any state always leads back to the root
      */
-    List<Node> nodes;
+    byte[] symbols;
 
     /**
-     * the list of peptides from which the machine will be built
+     * for each residue, the residue which stands for its class of equivalent
+     * residues (see getResidueClasses).  equivalent residues share a symbol,
+     * so they are the same residue to the machine
+     */
+    char[] residueClasses;
+
+    /**
+     * the number of distinct symbols, including the reserved symbol 0
+     */
+    int alphabetSize;
+
+    /**
+     * the compiled transition function.  the next state after reading
+     * symbol c in state s is transitions[s * alphabetSize + c]
+     */
+    int[] transitions;
+
+    /**
+     * the compiled pattern for each state, -1 if no peptide ends in the state.
+     * when several peptides have the same sequence, this is the first of
+     * them, and the rest are found through groups
+     */
+    int[] patterns;
+
+    /**
+     * the output link for each state, which is the longest proper suffix
+     * of the state that is also the end of a peptide, or 0 if there is none.
+     * following the output links from a state reaches every peptide that
+     * ends at the current position, even when one peptide is a suffix of another
+     */
+    int[] outputLinks;
+
+    /**
+     * the list of peptides from which the machine will be built, in their
+     * original order.  the (base 1) index of a peptide in this list is its
+     * index within the peptide file (e.g. the first peptide in the file is 1)
      */
     List<BioSequence> peptides;
 
     /**
-     * a mapping from the peptide sequences to their
-     * index within the peptide file (e.g. the first peptide in the file is...)
-     * the mapping is base 1
+     * the peptides which have the same sequence, and share a final state
+     */
+    PeptideGroups groups;
+
+    /**
+     * how long it took to build the machine, in milliseconds
      */
-    Map<BioSequence, Integer> indices;
+    long constructionTime;
+
+    /**
+     * the number of peptides in the machine
+     * (a shard only holds some of the peptides in the list)
+     */
+    int peptideCount;
+
+    /**
+     * a checksum of the peptide sequences, in their original order
+     */
+    long peptideChecksum;
+
+    /**
+     * the file the machine was read from, or null if it was built from the peptides
+     */
+    String cacheFile;
+
+    /**
+     * the length of the longest peptide in the machine, or -1 until it is
+     * first needed (see getMaxPatternLength)
+     */
+    int maxPatternLength = -1;
 
     // <editor-fold defaultstate="collapsed" desc="Constructors">
     public StateMachine(List<BioSequence> peptides) throws FileNotFoundException, IOException {
+        this(peptides, "");
+    }
 
-        nodes = new ArrayList<Node>();
+    /**
+     * build a state machine in which equivalent residues match each other,
+     * e.g. with "IL" a peptide with an isoleucine also matches a leucine
+     * at the same position, and the reverse
+     * @param peptides the peptides from which to build the machine
+     * @param equivalences the classes of equivalent residues (see getResidueClasses)
+     */
+    public StateMachine(List<BioSequence> peptides, String equivalences) throws FileNotFoundException, IOException {
+        long startTime = System.currentTimeMillis();
 
         // read in the peptide sequences
         this.peptides = peptides;
+        residueClasses = getResidueClasses(equivalences);
 
-        // keep track of the original indices, base 1
-        indices = new HashMap<BioSequence, Integer>();
-        for(int i = 0; i < peptides.size(); i++) {
-            indices.put(peptides.get(i), i + 1);
-        }
+        peptideChecksum = getChecksum(peptides);
 
-        // sort the peptide sequences
-        Collections.sort(peptides);
+        // sort the peptide sequences, as the machine sees them.  only their
+        // indices are sorted, so the list keeps the original indices
+        int[] order = sortPeptides(peptides, residueClasses);
+        groups = new PeptideGroups(peptides, order, residueClasses);
 
         // then construct the tree for the algorithm
-        constructTree(0, peptides.size(), true);
+        constructTree(order, 0, peptides.size(), true);
 
-        // and the failure links
+        // and finally the failure links, which finish out the state machine
         computeFailureLinks();
 
-        // and finally finish out the state machine
-        computeStateTransitions();
+        constructionTime = System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * build a state machine for the peptides from start to limit of an
+     * already sorted order.  this only reads the list, the order and the groups,
+     * so several shards can be built from the same list at the same time (see buildShards)
+     * @param peptides the list of all the peptides
+     * @param order the (base 0) indices of the peptides, sorted (see sortPeptides)
+     * @param groups the peptides with the same sequence
+     * @param residueClasses the classes of equivalent residues, by which the peptides are sorted
+     * @param peptideChecksum the checksum of all the peptides, in their original order
+     * @param start the first peptide in the sorted order for this machine
+     * @param limit the peptide after the last one for this machine
+     */
+    protected StateMachine(List<BioSequence> peptides, int[] order, PeptideGroups groups,
+            char[] residueClasses, long peptideChecksum, int start, int limit) {
+        long startTime = System.currentTimeMillis();
+
+        this.peptides = peptides;
+        this.groups = groups;
+        this.residueClasses = residueClasses;
+        this.peptideChecksum = peptideChecksum;
+
+        constructTree(order, start, limit, true);
+        computeFailureLinks();
+
+        constructionTime = System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * an empty state machine, which is filled in by read
+     */
+    protected StateMachine() {
+    }
+
+    /**
+     * split the peptides into shards and build a state machine for each shard
+     * at the same time.  the shards use the original peptide indices, so the
+     * matches of all the shards together are the matches of a single machine
+     * built from all of the peptides
+     * @param peptides the peptides from which to build the machines
+     * @param shardCount the number of shards, which is also the number of threads used
+     * @param equivalences the classes of equivalent residues (see getResidueClasses)
+     * @return the state machine for each shard
+     */
+    public static List<StateMachine> buildShards(final List<BioSequence> peptides, int shardCount, String equivalences) throws InterruptedException, ExecutionException {
+        final char[] residueClasses = getResidueClasses(equivalences);
+        final long peptideChecksum = getChecksum(peptides);
+        final int[] order = sortPeptides(peptides, residueClasses);
+        final PeptideGroups groups = new PeptideGroups(peptides, order, residueClasses);
+
+        // split the sorted peptides into ranges of about the same size, but
+        // never between identical (or equivalent) sequences, which share their final state
+        List<Integer> limits = new ArrayList<Integer>();
+        for(int shard = 1; shard <= shardCount; shard++) {
+            int limit = (int)((long)order.length * shard / shardCount);
+            while(limit > 0 && limit < order.length
+                    && compare(residueClasses, peptides.get(order[limit]), peptides.get(order[limit - 1])) == 0) {
+                limit++;
+            }
+            int previous = limits.isEmpty() ? 0 : limits.get(limits.size() - 1);
+            if(limit > previous) {
+                limits.add(limit);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, limits.size()));
+        try {
+            List<Future<StateMachine>> futures = new ArrayList<Future<StateMachine>>();
+            int start = 0;
+            for(final int limit : limits) {
+                final int shardStart = start;
+                futures.add(executor.submit(new Callable<StateMachine>() {
+                    public StateMachine call() {
+                        return new StateMachine(peptides, order, groups, residueClasses, peptideChecksum, shardStart, limit);
+                    }
+                }));
+                start = limit;
+            }
+
+            List<StateMachine> shards = new ArrayList<StateMachine>();
+            for(Future<StateMachine> future : futures) {
+                shards.add(future.get());
+            }
+            return shards;
+        } finally {
+            executor.shutdown();
+        }
     }// </editor-fold>
 
+    // <editor-fold defaultstate="collapsed" desc="File IO">
     /**
-     * write this state machine to a file
+     * use the compiled state machine in the cache file if it was built from
+     * the same peptides.  if it was built from the first of the peptides,
+     * the rest are added to it and the cache file is updated.  otherwise,
+     * build the state machine and write it to the cache file so that the
+     * next run can use it
+     * @param peptides the peptides from which to build the machine
+     * @param equivalences the classes of equivalent residues (see getResidueClasses)
+     * @param cacheFile the path of the cache file, if empty no cache is used
+     * @return the state machine for the peptides
+     */
+    public static StateMachine getStateMachine(List<BioSequence> peptides, String equivalences, String cacheFile) throws FileNotFoundException, IOException {
+        if(cacheFile.length() == 0) {
+            return new StateMachine(peptides, equivalences);
+        }
+
+        if(FileReading.exists(cacheFile)) {
+            StateMachine stateMachine = read(cacheFile, peptides, equivalences);
+            if(stateMachine != null) {
+                if(stateMachine.peptideCount < peptides.size()) {
+                    stateMachine.addPeptides(peptides);
+                    stateMachine.write(cacheFile);
+                }
+                return stateMachine;
+            }
+        }
+
+        StateMachine stateMachine = new StateMachine(peptides, equivalences);
+        stateMachine.write(cacheFile);
+        return stateMachine;
+    }
+
+    /**
+     * write this state machine to a file.
+     * the file has a fixed size header followed by the arrays of the machine
+     * in the byte order of this computer, so read can map them straight into
+     * memory without parsing anything
      * @param file the path of the file to write
      */
     public void write(String file) throws IOException {
-        String s = toString();
-        PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(file)));
-        pw.println(s);
-        pw.close();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            FileChannel channel = randomAccessFile.getChannel();
+
+            // the header is always big endian, and records the order of the arrays
+            ByteBuffer header = ByteBuffer.allocate(fileHeaderSize);
+            header.putInt(fileMagic);
+            header.putInt(fileVersion);
+            header.putInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0);
+            header.putInt(stateCount);
+            header.putInt(alphabetSize);
+            header.putInt(peptideCount);
+            header.putLong(peptideChecksum);
+            header.put(symbols);
+            for(int residue = 0; residue < maxResidue; residue++) {
+                header.put((byte)residueClasses[residue]);
+            }
+            header.rewind();
+            channel.write(header, 0);
+
+            long position = fileHeaderSize;
+            position = writeArray(channel, position, levels);
+            position = writeArray(channel, position, parents);
+            position = writeArray(channel, position, failLinks);
+            position = writeArray(channel, position, patterns);
+            position = writeArray(channel, position, outputLinks);
+            position = writeArray(channel, position, transitions);
+            position = writeArray(channel, position, resize(groups.nextPeptides, peptideCount + 1));
+            channel.write(ByteBuffer.wrap(edgeSymbols), position);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * read a state machine written by write
+     * @param file the path of the file to read
+     * @param peptides the peptides from which the machine was built.
+     *          the list may have more peptides at the end than the machine,
+     *          which can be added with addPeptides
+     * @param equivalences the classes of equivalent residues the machine was built with
+     * @return the state machine, or null if the file was written by a different
+     *          version, from a different list of peptides or with different classes
+     */
+    public static StateMachine read(String file, List<BioSequence> peptides, String equivalences) throws FileNotFoundException, IOException {
+        long startTime = System.currentTimeMillis();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if(channel.size() < fileHeaderSize) {
+                return null;
+            }
+
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileHeaderSize);
+            if(header.getInt() != fileMagic || header.getInt() != fileVersion) {
+                return null;
+            }
+            ByteOrder order = header.getInt() == 1 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+            StateMachine stateMachine = new StateMachine();
+            stateMachine.stateCount = header.getInt();
+            stateMachine.alphabetSize = header.getInt();
+            int peptideCount = header.getInt();
+            long checksum = header.getLong();
+            if(peptideCount > peptides.size() || checksum != getChecksum(peptides.subList(0, peptideCount))) {
+                return null;
+            }
+            stateMachine.symbols = new byte[maxResidue];
+            header.get(stateMachine.symbols);
+            stateMachine.residueClasses = getResidueClasses(equivalences);
+            for(int residue = 0; residue < maxResidue; residue++) {
+                if(header.get() != (byte)stateMachine.residueClasses[residue]) {
+                    return null;
+                }
+            }
+
+            int stateCount = stateMachine.stateCount;
+            long expectedSize = fileHeaderSize + 4L * stateCount * (5 + stateMachine.alphabetSize)
+                    + 4L * (peptideCount + 1) + stateCount;
+            if(channel.size() != expectedSize) {
+                return null;
+            }
+
+            long position = fileHeaderSize;
+            stateMachine.levels = new int[stateCount];
+            position = readArray(channel, position, stateMachine.levels, order);
+            stateMachine.parents = new int[stateCount];
+            position = readArray(channel, position, stateMachine.parents, order);
+            stateMachine.failLinks = new int[stateCount];
+            position = readArray(channel, position, stateMachine.failLinks, order);
+            stateMachine.patterns = new int[stateCount];
+            position = readArray(channel, position, stateMachine.patterns, order);
+            stateMachine.outputLinks = new int[stateCount];
+            position = readArray(channel, position, stateMachine.outputLinks, order);
+            stateMachine.transitions = new int[stateCount * stateMachine.alphabetSize];
+            position = readArray(channel, position, stateMachine.transitions, order);
+            int[] nextPeptides = new int[peptideCount + 1];
+            position = readArray(channel, position, nextPeptides, order);
+            stateMachine.groups = new PeptideGroups(peptides.subList(0, peptideCount), nextPeptides);
+            stateMachine.edgeSymbols = new byte[stateCount];
+            channel.map(FileChannel.MapMode.READ_ONLY, position, stateCount).get(stateMachine.edgeSymbols);
+
+            stateMachine.peptides = peptides;
+            stateMachine.peptideCount = peptideCount;
+            stateMachine.peptideChecksum = checksum;
+            stateMachine.cacheFile = file;
+            stateMachine.constructionTime = System.currentTimeMillis() - startTime;
+            return stateMachine;
+        } finally {
+            randomAccessFile.close();
+        }
     }
 
+    /**
+     * write the array to the channel in the byte order of this computer
+     * @return the position just after the array
+     */
+    protected static long writeArray(FileChannel channel, long position, int[] array) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.nativeOrder());
+        for(int offset = 0; offset < array.length; ) {
+            int length = Math.min(buffer.capacity() / 4, array.length - offset);
+            buffer.clear();
+            buffer.asIntBuffer().put(array, offset, length);
+            buffer.limit(length * 4);
+            while(buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            offset += length;
+        }
+        return position;
+    }
+
+    /**
+     * map the array from the channel into memory and copy it into the given array
+     * @return the position just after the array
+     */
+    protected static long readArray(FileChannel channel, long position, int[] array, ByteOrder order) throws IOException {
+        for(int offset = 0; offset < array.length; ) {
+            int length = Math.min(maxMappedBytes / 4, array.length - offset);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length * 4L);
+            buffer.order(order);
+            buffer.asIntBuffer().get(array, offset, length);
+            position += length * 4L;
+            offset += length;
+        }
+        return position;
+    }
+
+    /**
+     * summarize the peptide sequences, in order, so that a state machine
+     * in a file is only used for the same list of peptides
+     * @param peptides the peptides
+     * @return a checksum of the peptide sequences
+     */
+    protected static long getChecksum(List<BioSequence> peptides) {
+        CRC32 crc = new CRC32();
+        for(BioSequence peptide : peptides) {
+            String sequence = peptide.toString();
+            for(int i = 0; i < sequence.length(); i++) {
+                crc.update(sequence.charAt(i));
+            }
+            crc.update('\n');
+        }
+        return (crc.getValue() << 32) | peptides.size();
+    }
+    // </editor-fold>
+
     /**
      * construct the basic structure of the fsm
      * which is essentially a tree where the edges represent
      * characters in a breadth first type search of the list of peptides
-     * @param start begin constructing the tree from the given peptide index
-     * @param limit stop constructing the tree at this peptide
+     *
+     * the peptides between start and limit of the order must be sorted.  because
+     * of that, the prefix a peptide shares with the tree is exactly the prefix it
+     * shares with the previous peptide, so the tree can be built by only keeping
+     * the path to the previous peptide, without ever looking up a child
+     * @param order the (base 0) indices of the peptides, sorted (see sortPeptides)
+     * @param start begin constructing the tree from the given position in the order
+     * @param limit stop constructing the tree at this position
      * @param usePeptideNumericID if true, use the absolute peptide index
-     *                              otherwise, use the relative index (index - start)
+     *                              otherwise, use the relative position (position - start)
      */
-    protected void constructTree(int start, int limit, boolean usePeptideNumericID) {
-        // add the root node to the list
-        nodes.add(new Node());
+    protected void constructTree(int[] order, int start, int limit, boolean usePeptideNumericID) {
+        // first, give every residue a symbol and find an upper bound
+        // on the number of states (the root plus one per residue)
+        peptideCount = limit - start;
+        symbols = new byte[maxResidue];
+        alphabetSize = 1;
+        long maxStates = 1;
+        int maxLength = 0;
+        for(int i = start; i < limit; i++) {
+            String peptideSequence = peptides.get(order[i]).toString();
+            for(int j = 0; j < peptideSequence.length(); j++) {
+                char residue = fold(peptideSequence.charAt(j));
+                if(residue < maxResidue && symbols[residue] == 0) {
+                    symbols[residue] = (byte)alphabetSize++;
+                }
+            }
+            maxStates += peptideSequence.length();
+            maxLength = Math.max(maxLength, peptideSequence.length());
+        }
+        shareSymbols();
+        if(maxStates > Integer.MAX_VALUE / alphabetSize) {
+            throw new IllegalArgumentException("Too many peptide residues for one state machine: " + maxStates);
+        }
+
+        levels = new int[(int)maxStates];
+        parents = new int[(int)maxStates];
+        edgeSymbols = new byte[(int)maxStates];
+        patterns = new int[(int)maxStates];
+
+        // add the root node
+        patterns[0] = -1;
+        stateCount = 1;
+
+        // path[j] is the state reached after the first j residues of the previous peptide
+        int[] path = new int[maxLength + 1];
+        String previousSequence = "";
 
         // loop over the peptide sequences from start to limit
         for(int i = start; i < limit; i++) {
-            // look at this node in the list
-            Integer nodeIndex = 0;
+            String peptideSequence = peptides.get(order[i]).toString();
+
+            // find how much of the peptide is already in the tree
+            int shared = 0;
+            int sharedLimit = Math.min(previousSequence.length(), peptideSequence.length());
+            while(shared < sharedLimit && fold(previousSequence.charAt(shared)) == fold(peptideSequence.charAt(shared))) {
+                shared++;
+            }
 
-            String peptideSequence = peptides.get(i).toString();
+            // and add new states for the rest of it
+            int nodeIndex = path[shared];
+            for(int j = shared; j < peptideSequence.length(); j++) {
+                int newNode = stateCount++;
+                levels[newNode] = j + 1;
+                parents[newNode] = nodeIndex;
+                edgeSymbols[newNode] = (byte)getSymbol(peptideSequence.charAt(j));
+                patterns[newNode] = -1;
 
-            // for each character in the sequence
-            for(int j = 0; j < peptideSequence.length(); j++) {
-                // convert the base at this position to an index
-                //byte edge = (byte)(peptideSequence.charAt(j) - 'A');
-                String edge = peptideSequence.substring(j, j+1);
-
-                // does the edge already exist
-                //if(nodes.get(nodeIndex).edges[edge] != 0) {
-                if(nodes.get(nodeIndex).edges.containsKey(edge)) {
-                    // then go to the next node
-                    //nodeIndex = nodes.get(nodeIndex).edges[edge];
-                    nodeIndex = nodes.get(nodeIndex).edges.get(edge);
+                nodeIndex = newNode;
+                path[j + 1] = nodeIndex;
+            }
+
+            // only the first of a group of identical peptides is the pattern,
+            // the rest are linked from it through the groups
+            if(patterns[nodeIndex] == -1) {
+                if(usePeptideNumericID) {
+                    patterns[nodeIndex] = order[i] + 1;
                 } else {
-                    // then the edge does not exist, so create a new node and edge
-                    // add the new edge from the current node to the new node
-                    // and the new node
-                    //nodes.get(nodeIndex).edges[edge] = nodes.size();
-                    nodes.get(nodeIndex).edges.put(edge, nodes.size());
-                    Node newNode = new Node();
-                    newNode.level = nodes.get(nodeIndex).level + 1;
-                    newNode.parent = nodeIndex;
-                    newNode.bChar = edge;
-
-                    // and add it to the list
-                    nodes.add(newNode);
-
-                    // and follow it
-                    nodeIndex = nodes.size() - 1;
+                    patterns[nodeIndex] = i - start;
                 }
             }
 
-            if(usePeptideNumericID) {
-                nodes.get(nodeIndex).pattern = indices.get(peptides.get(i));
-            } else {
-                nodes.get(nodeIndex).pattern = (int)(i - start);
+            previousSequence = peptideSequence;
+        }
+
+        // shrink the arrays to the number of states actually used
+        levels = resize(levels, stateCount);
+        parents = resize(parents, stateCount);
+        patterns = resize(patterns, stateCount);
+        edgeSymbols = resize(edgeSymbols, stateCount);
+
+        // and record the edges of the tree in the transition table
+        // (residues without a symbol can never be followed, so they get no edge)
+        transitions = new int[stateCount * alphabetSize];
+        for(int state = 1; state < stateCount; state++) {
+            if(edgeSymbols[state] != 0) {
+                transitions[parents[state] * alphabetSize + edgeSymbols[state]] = state;
             }
         }
     }
@@ -140,159 +595,546 @@ public class StateMachine {
     /**
      * update the fsm structure to account for mismatches
      * if the mismatch is a prefix represented by a previous node
-     * the failure link points to the node instead of the root
+     * the failure link points to the node instead of the root.
+     *
+     * at the same time, generate the actual transition function for the
+     * state machine: a state without an edge for a symbol takes whatever
+     * transition its fail link takes.  a breadth-first search is used, so the
+     * fail link of every state is at a lower level and its transitions are
+     * already complete by the time the state is reached.  the row of a state
+     * is only filled in once it is removed from the queue, so until then
+     * any transition in the row is an edge of the tree.
+     *
+     * the output links only depend on the fail links, so they are found here, too
      */
     protected void computeFailureLinks() {
-        // perform a breadth-first search to determine when failure links
-        // should point to something other than the root
-        Queue<Node> queue = new LinkedList<Node>();
-        
+        failLinks = new int[stateCount];
+        outputLinks = new int[stateCount];
+
+        // the queue holds each state exactly once, so a plain array is enough
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+
         // start with the root
-        queue.add(nodes.get(0));
-        
-        while(!queue.isEmpty()) {
+        queue[tail++] = 0;
+
+        while(head < tail) {
             // get the next node
-            Node node = queue.remove();
-            
-//            // push all of its children
-//            for(int n = 0; n < maxEdges; n++) {
-//                // if there is a node for this link
-//                if(node.edges[n] != 0) { // -1) {
-//                    int childIndex = node.edges[n];
-//                    Node child = nodes.get(childIndex);
-//                    queue.add(child);
-//                }
-//            }
-
-            for(Entry<String, Integer> link : node.edges.entrySet()) {
-                Node child = nodes.get(link.getValue());
-                queue.add(child);
-            }
-
-            // if the node is not a root,
-            if(node.level > 1) {
-                // look at the fail link for the parent
-                Node parent = nodes.get(node.parent);
-                int parentFailLink = parent.failLink;
-
-                // keep backtracking until the fail link for
-                // the character from node is found
-                while(parentFailLink != 0) {
-                    parent = nodes.get(parentFailLink);
-                    //if(parent.edges[node.bChar] != 0) {// -1) {
-                    if(parent.edges.containsKey(node.bChar)) {
-                        break;
+            int node = queue[head++];
+            int row = node * alphabetSize;
+            int failRow = failLinks[node] * alphabetSize;
+
+            for(int c = 1; c < alphabetSize; c++) {
+                int child = transitions[row + c];
+
+                if(child == 0) {
+                    // no edge, so do whatever the fail link would do
+                    // (the root has no fail link, so it just goes back to itself)
+                    if(node != 0) {
+                        transitions[row + c] = transitions[failRow + c];
                     }
-                    parentFailLink = parent.failLink;
+                    continue;
                 }
 
-                parent = nodes.get(parentFailLink);
-                Integer failLink = parent.edges.get(node.bChar);
-                //if(parent.edges[node.bChar] != 0) {// -1) {
-                if(failLink != null) {
-                    // then we have found the fail link
-                    // for this node
-                    //int failLink = parent.edges[node.bChar];
-                    Node failNode = nodes.get(failLink);
-
-                    if(node.pattern == -1 && failNode.pattern != -1) {
-                        node.pattern = failNode.pattern;
-                    }
+                // a real edge, so the fail link of the child is wherever the fail
+                // link of this node goes on the same symbol
+                // (the children of the root always fail back to the root)
+                int failLink = 0;
+                if(node != 0) {
+                    failLink = transitions[failRow + c];
+                }
+                failLinks[child] = failLink;
 
-                    node.failLink = failLink;
+                // the output link is the fail node if a peptide ends there,
+                // otherwise it is wherever the fail node's output link goes
+                if(patterns[failLink] != -1) {
+                    outputLinks[child] = failLink;
+                } else {
+                    outputLinks[child] = outputLinks[failLink];
                 }
+
+                queue[tail++] = child;
             }
         }
     }
 
     /**
-     * based on the computed tree structure and fail links,
-     * generate the actual transition function for the state machine
+     * add new peptides to the machine without building it again.
+     * the new peptides must be at the end of the list, after the peptides
+     * already in the machine, so they are given the (base 1) indices
+     * after the current peptides.
+     *
+     * first, the new peptides are added to the tree.  a state is affected by
+     * them if it is one of the new states, if a new branch starts from it, if
+     * it is the end of a new peptide, or if its fail link is affected.  only
+     * states whose parent is affected can get a new fail link, and only affected
+     * states can get new transitions or output links, so everything else is
+     * left as it is.  when only a few peptides are added, only a small part of
+     * the machine is affected and only that part is recomputed.
+     * @param allPeptides the peptides already in the machine, followed by the new ones
      */
-    protected void computeStateTransitions() {
-        // use a breadth-first search
-        Queue<Node> queue = new LinkedList<Node>();
-        queue.add(nodes.get(0));
+    public void addPeptides(List<BioSequence> allPeptides) {
+        int firstNewPeptide = peptideCount;
+        if(firstNewPeptide >= allPeptides.size()) {
+            return;
+        }
+        maxPatternLength = -1;
 
-        while(!queue.isEmpty()) {
-            Node node = queue.remove();
+        // give new residues a symbol.  the new symbols are added as new
+        // columns of the transition table, which start out leading back to the
+        // root; they can only lead anywhere else from affected states
+        long maxStates = stateCount;
+        int oldAlphabetSize = alphabetSize;
+        for(int i = firstNewPeptide; i < allPeptides.size(); i++) {
+            String peptideSequence = allPeptides.get(i).toString();
+            for(int j = 0; j < peptideSequence.length(); j++) {
+                char residue = fold(peptideSequence.charAt(j));
+                if(residue < maxResidue && symbols[residue] == 0) {
+                    symbols[residue] = (byte)alphabetSize++;
+                }
+            }
+            maxStates += peptideSequence.length();
+        }
+        shareSymbols();
+        if(maxStates > Integer.MAX_VALUE / alphabetSize) {
+            throw new IllegalArgumentException("Too many peptide residues for one state machine: " + maxStates);
+        }
+        if(alphabetSize != oldAlphabetSize) {
+            int[] widened = new int[(int)maxStates * alphabetSize];
+            for(int state = 0; state < stateCount; state++) {
+                System.arraycopy(transitions, state * oldAlphabetSize, widened, state * alphabetSize, oldAlphabetSize);
+            }
+            transitions = widened;
+        } else {
+            transitions = resize(transitions, (int)maxStates * alphabetSize);
+        }
+        levels = resize(levels, (int)maxStates);
+        parents = resize(parents, (int)maxStates);
+        edgeSymbols = resize(edgeSymbols, (int)maxStates);
+        patterns = resize(patterns, (int)maxStates);
+        failLinks = resize(failLinks, (int)maxStates);
+        outputLinks = resize(outputLinks, (int)maxStates);
+
+        int firstNewState = stateCount;
+        boolean[] affected = new boolean[(int)maxStates];
 
-//            // push all of its children
-//            for(int n = 0; n < maxEdges; n++) {
-//                // if there is a node for this link
-//                if(node.edges[n] != 0) {// -1) {
-//                    int childIndex = node.edges[n];
-//                    Node child = nodes.get(childIndex);
-//                    queue.add(child);
-//                }
-//            }
-            
-            for(Entry<String, Integer> link : node.edges.entrySet()) {
-                Node child = nodes.get(link.getValue());
-                queue.add(child);
+        // add the new peptides to the tree.  a transition to a state whose
+        // parent is the current state is an edge of the tree, anything else
+        // is a fail transition, which is replaced by a new edge
+        for(int i = firstNewPeptide; i < allPeptides.size(); i++) {
+            String peptideSequence = allPeptides.get(i).toString();
+            int nodeIndex = 0;
+            for(int j = 0; j < peptideSequence.length(); j++) {
+                int symbol = getSymbol(peptideSequence.charAt(j));
+                int next = transitions[nodeIndex * alphabetSize + symbol];
+                if(symbol == 0 || next == 0 || parents[next] != nodeIndex || levels[next] != j + 1) {
+                    next = stateCount++;
+                    levels[next] = j + 1;
+                    parents[next] = nodeIndex;
+                    edgeSymbols[next] = (byte)symbol;
+                    patterns[next] = -1;
+                    affected[nodeIndex] = true;
+                    if(symbol != 0) {
+                        transitions[nodeIndex * alphabetSize + symbol] = next;
+                    }
+                }
+                nodeIndex = next;
+            }
+            if(patterns[nodeIndex] == -1) {
+                patterns[nodeIndex] = i + 1;
+                groups.add(allPeptides, 0, i + 1);
+                affected[nodeIndex] = true;
+            } else {
+                groups.add(allPeptides, patterns[nodeIndex], i + 1);
             }
+        }
+
+        // visit the states in order of increasing level, using a counting sort
+        int maxLevel = 0;
+        for(int state = 0; state < stateCount; state++) {
+            maxLevel = Math.max(maxLevel, levels[state]);
+        }
+        int[] levelStarts = new int[maxLevel + 2];
+        for(int state = 0; state < stateCount; state++) {
+            levelStarts[levels[state] + 1]++;
+        }
+        for(int level = 1; level < levelStarts.length; level++) {
+            levelStarts[level] += levelStarts[level - 1];
+        }
+        int[] order = new int[stateCount];
+        for(int state = 0; state < stateCount; state++) {
+            order[levelStarts[levels[state]]++] = state;
+        }
 
-            if(node.level != 0) {
-                // check the fail link
-                Node failNode = nodes.get(node.failLink);
+        for(int k = 1; k < stateCount; k++) {
+            int node = order[k];
+            int parent = parents[node];
 
-                // update the pattern if necessary
-                if(node.pattern == -1 && failNode.pattern != -1) {
-                    node.pattern = failNode.pattern;
+            // only the states under an affected state can have a new fail link
+            if(node >= firstNewState || affected[parent]) {
+                int failLink = 0;
+                if(parent != 0) {
+                    failLink = transitions[failLinks[parent] * alphabetSize + edgeSymbols[node]];
                 }
+                failLinks[node] = failLink;
+            }
+            if(node >= firstNewState || affected[failLinks[node]]) {
+                affected[node] = true;
+            }
+            if(!affected[node]) {
+                continue;
+            }
 
-//                // copy over all of the fail links
-//                for(int n = 0; n < maxEdges; n++) {
-//                    //if(node.edges[n] == -1 && failNode.edges[n] != -1) {
-//                    if(node.edges[n] == 0 && failNode.edges[n] != 0) {
-//                        node.edges[n] = failNode.edges[n];
-//                    }
-//                }
-
-                for(Entry<String, Integer> link : failNode.edges.entrySet()) {
-                    if(!node.edges.containsKey(link.getKey())) {
-                        node.edges.put(link.getKey(), link.getValue());
-                    }
+            int failLink = failLinks[node];
+            if(patterns[failLink] != -1) {
+                outputLinks[node] = failLink;
+            } else {
+                outputLinks[node] = outputLinks[failLink];
+            }
+
+            // and fill in every transition which is not an edge of the tree
+            int row = node * alphabetSize;
+            int failRow = failLink * alphabetSize;
+            for(int c = 1; c < alphabetSize; c++) {
+                int child = transitions[row + c];
+                if(child == 0 || parents[child] != node || levels[child] != levels[node] + 1) {
+                    transitions[row + c] = transitions[failRow + c];
                 }
             }
         }
+
+        // shrink the arrays to the number of states actually used
+        transitions = resize(transitions, stateCount * alphabetSize);
+        levels = resize(levels, stateCount);
+        parents = resize(parents, stateCount);
+        edgeSymbols = resize(edgeSymbols, stateCount);
+        patterns = resize(patterns, stateCount);
+        failLinks = resize(failLinks, stateCount);
+        outputLinks = resize(outputLinks, stateCount);
+
+        peptides = allPeptides;
+        peptideCount = allPeptides.size();
+        peptideChecksum = getChecksum(allPeptides);
+        groups.trim(peptideCount);
+    }
+
+    /**
+     * copy the array into a new array of the given length,
+     * dropping values past the length or padding with zeros
+     */
+    protected static int[] resize(int[] array, int length) {
+        if(array.length == length) {
+            return array;
+        }
+        int[] resized = new int[length];
+        System.arraycopy(array, 0, resized, 0, Math.min(array.length, length));
+        return resized;
+    }
+
+    /**
+     * copy the array into a new array of the given length,
+     * dropping values past the length or padding with zeros
+     */
+    protected static byte[] resize(byte[] array, int length) {
+        if(array.length == length) {
+            return array;
+        }
+        byte[] resized = new byte[length];
+        System.arraycopy(array, 0, resized, 0, Math.min(array.length, length));
+        return resized;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="Residue Classes">
+    /**
+     * parse classes of residues which the machine treats as the same residue,
+     * for example "IL" (isoleucine and leucine, which have the same mass) or
+     * "IL,QK,ND" to also allow for glutamine/lysine and deamidation
+     * @param equivalences the classes, separated by commas, or an empty string for none
+     * @return for each residue, the first residue of its class
+     */
+    public static char[] getResidueClasses(String equivalences) {
+        char[] residueClasses = new char[maxResidue];
+        for(char residue = 0; residue < maxResidue; residue++) {
+            residueClasses[residue] = residue;
+        }
+
+        boolean[] used = new boolean[maxResidue];
+        for(String equivalenceClass : equivalences.split(",")) {
+            equivalenceClass = equivalenceClass.trim();
+            for(int i = 0; i < equivalenceClass.length(); i++) {
+                char residue = equivalenceClass.charAt(i);
+                if(residue >= maxResidue || used[residue]) {
+                    throw new IllegalArgumentException("Invalid residue classes: " + equivalences);
+                }
+                used[residue] = true;
+                residueClasses[residue] = equivalenceClass.charAt(0);
+            }
+        }
+        return residueClasses;
+    }
+
+    /**
+     * compare peptides residue by residue as the machine sees them, so
+     * equivalent peptides are equal and sorting brings them together
+     * @param residueClasses the classes of equivalent residues
+     * @return a comparator which orders the peptides like their folded sequences
+     */
+    protected static Comparator<BioSequence> getComparator(final char[] residueClasses) {
+        return new Comparator<BioSequence>() {
+            public int compare(BioSequence first, BioSequence second) {
+                return StateMachine.compare(residueClasses, first, second);
+            }
+        };
+    }
+
+    /**
+     * compare two peptides residue by residue as the machine sees them
+     * @return less than, equal to or greater than 0 if first is before, equal to or after second
+     */
+    protected static int compare(char[] residueClasses, BioSequence first, BioSequence second) {
+        String firstSequence = first.toString();
+        String secondSequence = second.toString();
+        int length = Math.min(firstSequence.length(), secondSequence.length());
+        for(int i = 0; i < length; i++) {
+            char a = fold(residueClasses, firstSequence.charAt(i));
+            char b = fold(residueClasses, secondSequence.charAt(i));
+            if(a != b) {
+                return a - b;
+            }
+        }
+        return firstSequence.length() - secondSequence.length();
+    }
+
+    /**
+     * sort the peptides as the machine sees them, without changing the list.
+     * the sort is stable, so equal peptides stay in their original order
+     * @param peptides the peptides
+     * @param residueClasses the classes of equivalent residues
+     * @return the (base 0) indices of the peptides, in sorted order
+     */
+    protected static int[] sortPeptides(final List<BioSequence> peptides, char[] residueClasses) {
+        final Comparator<BioSequence> comparator = getComparator(residueClasses);
+        Integer[] order = new Integer[peptides.size()];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer first, Integer second) {
+                return comparator.compare(peptides.get(first), peptides.get(second));
+            }
+        });
+
+        int[] sorted = new int[order.length];
+        for(int i = 0; i < order.length; i++) {
+            sorted[i] = order[i];
+        }
+        return sorted;
     }
 
     /**
-     * represent a node in the tree
+     * @return the first residue of the class of the residue
      */
-    protected class Node {
-        //int[] edges;
-        Map<String, Integer> edges;
-        int level;
-        int failLink;
-        int parent;
-        int pattern;
-        //byte bChar;
-        String bChar;
+    protected static char fold(char[] residueClasses, char residue) {
+        if(residue >= maxResidue) {
+            return residue;
+        }
+        return residueClasses[residue];
+    }
 
-        public Node() {
-            edges = new HashMap<String, Integer>();
-//            edges = new int[maxEdges];
-//            for(int i = 0; i < maxEdges; i++) {
-//                edges[i] = 0;//-1;
-//            }
+    protected final char fold(char residue) {
+        return fold(residueClasses, residue);
+    }
 
-            level = 0;
-            failLink = 0;
-            parent = 0;
-            pattern = -1;
-            //bChar = 0;
-            bChar = "";
+    /**
+     * give every residue the symbol of the first residue of its class,
+     * which is the only one of the class that is given a symbol directly
+     */
+    protected void shareSymbols() {
+        for(int residue = 0; residue < maxResidue; residue++) {
+            symbols[residue] = symbols[residueClasses[residue]];
         }
+    }// </editor-fold>
 
-        public int getNextState(String edge) {
-            Integer nextState = edges.get(edge);
-            if(nextState == null) {
-                nextState = 0;
+    /**
+     * find the symbol used by the compiled machine for the given residue
+     * @param residue the amino acid character
+     * @return the symbol for residue, or 0 if it does not appear in any peptide
+     */
+    public final int getSymbol(char residue) {
+        if(residue >= maxResidue) {
+            return 0;
+        }
+        return symbols[residue];
+    }
+
+    /**
+     * follow the compiled transition function
+     * @param state the current state
+     * @param residue the next amino acid character
+     * @return the state reached after reading residue
+     */
+    public final int getNextState(int state, char residue) {
+        return transitions[state * alphabetSize + getSymbol(residue)];
+    }
+
+    /**
+     * @param state a state in the machine
+     * @return the (base 1) index of the peptide which ends exactly in state, or -1 if none
+     */
+    public final int getPattern(int state) {
+        return patterns[state];
+    }
+
+    /**
+     * find the first state, starting from state itself, in which a peptide ends.
+     * together with getOutputLink, this enumerates every peptide matched in state
+     * <pre>
+     * for(int match = getFirstMatch(state); match != 0; match = getOutputLink(match)) {
+     *     int peptideIndex = getPattern(match);
+     * }
+     * </pre>
+     * @param state a state in the machine
+     * @return the first matching state, or 0 if no peptide matches in state
+     */
+    public final int getFirstMatch(int state) {
+        if(patterns[state] != -1) {
+            return state;
+        }
+        return outputLinks[state];
+    }
+
+    /**
+     * @return the peptides with the same sequence, which are reported
+     *          along with the pattern of a state
+     */
+    public PeptideGroups getGroups() {
+        return groups;
+    }
+
+    /**
+     * @param state a state in which a peptide ends
+     * @return the next state along the output links in which a peptide ends, or 0 if none
+     */
+    public final int getOutputLink(int state) {
+        return outputLinks[state];
+    }
+
+    /**
+     * run the machine over the first limit residues of the protein sequence
+     * and collect every match, in the order they are found
+     * @param protein the translated sequence to search
+     * @param limit the number of residues to search
+     * @param ends receives the position of the last residue of each match
+     * @param matches receives the (base 1) index of the peptide of each match
+     */
+    public void search(CharSequence protein, int limit, IntList ends, IntList matches) {
+        int state = 0;
+        for(int i = 0; i < limit; i++) {
+            state = getNextState(state, protein.charAt(i));
+            for(int match = getFirstMatch(state); match != 0; match = getOutputLink(match)) {
+                ends.add(i);
+                matches.add(patterns[match]);
             }
-            return nextState;
         }
     }
 
+    /**
+     * run the machine over the residues of the protein sequence from start up
+     * to limit, and collect every match which ends in that range, in the order
+     * they are found.  the machine starts reading from the root the length of
+     * the longest peptide before start, so the matches are the same as those
+     * of search over the whole sequence, and searching consecutive ranges
+     * finds every match exactly once
+     * @param protein the translated sequence to search
+     * @param start the position of the first residue at which a match may end
+     * @param limit the position after the last residue to search
+     * @param ends receives the position of the last residue of each match
+     * @param matches receives the (base 1) index of the peptide of each match
+     */
+    public void search(CharSequence protein, int start, int limit, IntList ends, IntList matches) {
+        int state = 0;
+        for(int i = Math.max(start - getMaxPatternLength() + 1, 0); i < limit; i++) {
+            state = getNextState(state, protein.charAt(i));
+            if(i < start) {
+                continue;
+            }
+            for(int match = getFirstMatch(state); match != 0; match = getOutputLink(match)) {
+                ends.add(i);
+                matches.add(patterns[match]);
+            }
+        }
+    }
+
+    /**
+     * @return the length of the longest peptide in the machine, which is the
+     *          depth of the deepest state in which a peptide ends
+     */
+    public int getMaxPatternLength() {
+        if(maxPatternLength == -1) {
+            int maxLength = 0;
+            for(int state = 1; state < stateCount; state++) {
+                if(patterns[state] != -1) {
+                    maxLength = Math.max(maxLength, levels[state]);
+                }
+            }
+            maxPatternLength = maxLength;
+        }
+        return maxPatternLength;
+    }
+
+    /**
+     * @return the number of states in the machine
+     */
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    /**
+     * @return the time it took to build (or read) the machine, in milliseconds
+     */
+    public long getConstructionTime() {
+        return constructionTime;
+    }
+
+    /**
+     * estimate the memory held by the arrays of the machine
+     * (not counting the peptides themselves)
+     * @return the size of the machine, in bytes
+     */
+    public long getMemoryFootprint() {
+        long bytes = (long)transitions.length * 4;
+        bytes += ((long)levels.length + parents.length + failLinks.length + patterns.length + outputLinks.length) * 4;
+        bytes += edgeSymbols.length + symbols.length;
+        return bytes;
+    }
+
+    /**
+     * find the largest amount of heap the virtual machine has used so far
+     * @return the sum of the peak usage of all the heap memory pools, in bytes
+     */
+    public static long getPeakHeapUsage() {
+        long peak = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * summarize the size of the machine and the cost of building it
+     * @return a one line report of the states, build time and memory use
+     */
+    public String getStatistics() {
+        String source = "built";
+        if(cacheFile != null) {
+            source = "read from " + cacheFile;
+        }
+        return "state machine: " + peptideCount + " peptides, " + stateCount + " states, "
+                + alphabetSize + " symbols, " + source + " in " + constructionTime + " ms, "
+                + (getMemoryFootprint() >> 20) + " MB, peak heap " + (getPeakHeapUsage() >> 20) + " MB";
+    }
+
 }
@@ -0,0 +1,98 @@
+package proteogenomicmapping;
+
+/**
+ * A reading frame of either strand of a reference, read directly from the
+ * forward strand: a forward reading frame skips the first few nucleotides,
+ * and a reverse reading frame reads the forward strand backwards through a
+ * complement table, so the reverse complement is never copied
+ * @author Brandon
+ */
+public class StrandSequence implements CharSequence {
+
+    // <editor-fold defaultstate="collapsed" desc="Fields">
+    /**
+     * the forward strand, and the number of nucleotides in it
+     */
+    protected byte[] strand;
+    protected int strandLength;
+
+    /**
+     * the number of nucleotides skipped at the start of the reading frame
+     */
+    protected int offset;
+
+    /**
+     * the complement of each nucleotide byte, or null for a forward reading frame
+     */
+    protected byte[] complements;
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Constructors">
+    /**
+     * @param strand the forward strand
+     * @param strandLength the number of nucleotides in the forward strand
+     * @param offset the number of nucleotides skipped at the start of the reading frame
+     * @param complements the complement of each nucleotide byte for a
+     *          reverse reading frame, or null for a forward reading frame
+     */
+    public StrandSequence(byte[] strand, int strandLength, int offset, byte[] complements) {
+        this.strand = strand;
+        this.strandLength = strandLength;
+        this.offset = Math.min(offset, strandLength);
+        this.complements = complements;
+    }
+    // </editor-fold>
+
+    /**
+     * copy characters of the reading frame into a byte array, complementing
+     * them for a reverse reading frame
+     * @param start the first character to copy
+     * @param end the position after the last character to copy
+     * @param destination the byte array
+     * @param offset the position of the first character in destination
+     */
+    public void getBytes(int start, int end, byte[] destination, int offset) {
+        if(start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("Start: " + start + ", End: " + end + ", Length: " + length());
+        }
+        if(complements == null) {
+            System.arraycopy(strand, this.offset + start, destination, offset, end - start);
+            return;
+        }
+        for(int i = strandLength - 1 - this.offset - start, j = offset; j < offset + end - start; i--, j++) {
+            destination[j] = complements[strand[i] & 0xFF];
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="CharSequence Methods">
+    public int length() {
+        return strandLength - offset;
+    }
+
+    public char charAt(int index) {
+        if(index >= strandLength - offset) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length());
+        }
+        if(complements == null) {
+            return (char)(strand[offset + index] & 0xFF);
+        }
+        return (char)(complements[strand[strandLength - 1 - offset - index] & 0xFF] & 0xFF);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        if(start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("Start: " + start + ", End: " + end + ", Length: " + length());
+        }
+        char[] characters = new char[end - start];
+        for(int i = start; i < end; i++) {
+            characters[i - start] = charAt(i);
+        }
+        return new String(characters);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+    // </editor-fold>
+}
@@ -0,0 +1,324 @@
+package proteogenomicmapping;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A file holding the six reading frames of every sequence of a reference,
+ * translated with a particular codon table, so that mapping another set of
+ * peptides against the same reference does not translate it again.
+ *
+ * The file has a fixed size header, then the translated frames (F1, F2, F3,
+ * R1, R2, R3) of each sequence one after the other, then an index with the
+ * offset and length of each sequence.  The header records checksums of the
+ * reference file and of the compiled codon table, so a file made from a
+ * different reference or codon table is never used.  The frames are mapped
+ * into memory when they are read, never copied.
+ * @author Brandon
+ */
+public class TranslationCache {
+
+    // <editor-fold defaultstate="collapsed" desc="Fields">
+    // identifies a translation cache file, and the version of its layout
+    public static final int fileMagic = 0x50474d54;
+    public static final int fileVersion = 1;
+
+    // the size of the fixed part of the file, before the frames
+    protected static final int fileHeaderSize = 40;
+
+    /**
+     * the path of the file, and the file itself
+     */
+    String file;
+    RandomAccessFile randomAccessFile;
+    FileChannel channel;
+
+    /**
+     * true if the frames are being written, false if they are being read
+     */
+    boolean writing;
+
+    /**
+     * the checksums of the reference file and of the codon table
+     */
+    long referenceChecksum;
+    long codeChecksum;
+
+    /**
+     * the offset of the frames of each sequence in the file, and the length
+     * of the (untranslated) sequence
+     */
+    long[] offsets;
+    IntList strandLengths;
+
+    /**
+     * the position after the last frame written
+     */
+    long position;
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Constructors">
+    protected TranslationCache(String file, long referenceChecksum, long codeChecksum) {
+        this.file = file;
+        this.referenceChecksum = referenceChecksum;
+        this.codeChecksum = codeChecksum;
+        this.offsets = new long[16];
+        this.strandLengths = new IntList();
+    }
+
+    /**
+     * create a new cache file, to which the frames of each sequence of the
+     * reference are written (see write) as they are translated
+     * @param file the path of the cache file
+     * @param referenceFile the path of the reference which is translated
+     * @param translator the translator with the codon table
+     * @return the cache, which has to be closed once every sequence is written
+     */
+    public static TranslationCache create(String file, String referenceFile, Translator translator) throws IOException {
+        TranslationCache cache = new TranslationCache(file, getReferenceChecksum(referenceFile), getCodeChecksum(translator));
+        cache.writing = true;
+        cache.randomAccessFile = new RandomAccessFile(file, "rw");
+        cache.randomAccessFile.setLength(0);
+        cache.channel = cache.randomAccessFile.getChannel();
+        cache.position = fileHeaderSize;
+        return cache;
+    }
+
+    /**
+     * open a cache file written by create
+     * @param file the path of the cache file
+     * @param referenceFile the path of the reference which was translated
+     * @param translator the translator with the codon table
+     * @return the cache, or null if there is no file or it was written by a
+     *          different version, from a different reference or with a different codon table
+     */
+    public static TranslationCache open(String file, String referenceFile, Translator translator) throws IOException {
+        if(!FileReading.exists(file)) {
+            return null;
+        }
+
+        TranslationCache cache = new TranslationCache(file, getReferenceChecksum(referenceFile), getCodeChecksum(translator));
+        cache.randomAccessFile = new RandomAccessFile(file, "r");
+        cache.channel = cache.randomAccessFile.getChannel();
+        if(!cache.readIndex()) {
+            cache.close();
+            return null;
+        }
+        return cache;
+    }// </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="File IO">
+    /**
+     * read the header and the index of the file
+     * @return true if the file matches the reference and codon table
+     */
+    protected boolean readIndex() throws IOException {
+        if(channel.size() < fileHeaderSize) {
+            return false;
+        }
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileHeaderSize);
+        if(header.getInt() != fileMagic || header.getInt() != fileVersion) {
+            return false;
+        }
+        int sequenceCount = header.getInt();
+        if(header.getLong() != referenceChecksum || header.getLong() != codeChecksum) {
+            return false;
+        }
+        long indexPosition = header.getLong();
+        if(indexPosition < fileHeaderSize || channel.size() != indexPosition + 12L * sequenceCount) {
+            return false;
+        }
+
+        MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexPosition, 12L * sequenceCount);
+        offsets = new long[Math.max(sequenceCount, 1)];
+        for(int sequence = 0; sequence < sequenceCount; sequence++) {
+            offsets[sequence] = index.getLong();
+            strandLengths.add(index.getInt());
+        }
+        return true;
+    }
+
+    /**
+     * add the translated frames of the next sequence to the file
+     * @param frames the translations of F1, F2, F3, R1, R2 and R3 (see Translator.translateFrames)
+     * @param strandLength the length of the untranslated sequence
+     */
+    public void write(ByteSequence[] frames, int strandLength) throws IOException {
+        int sequence = strandLengths.size();
+        if(sequence == offsets.length) {
+            long[] grown = new long[offsets.length * 2];
+            System.arraycopy(offsets, 0, grown, 0, sequence);
+            offsets = grown;
+        }
+        offsets[sequence] = position;
+        strandLengths.add(strandLength);
+
+        for(ByteSequence frame : frames) {
+            ByteBuffer buffer = ByteBuffer.wrap(frame.getBytes(), 0, frame.length());
+            while(buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * map the translated frames of a sequence into memory
+     * @param sequence the (base 0) index of the sequence within the reference
+     * @return the translations of F1, F2, F3, R1, R2 and R3
+     */
+    public CharSequence[] getFrames(int sequence) throws IOException {
+        CharSequence[] frames = new CharSequence[6];
+        long frameOffset = offsets[sequence];
+        int strandLength = strandLengths.get(sequence);
+        for(int frame = 0; frame < frames.length; frame++) {
+            int frameLength = Math.max(strandLength - frame % 3, 0) / 3;
+            frames[frame] = new MappedSequence(channel.map(FileChannel.MapMode.READ_ONLY, frameOffset, frameLength));
+            frameOffset += frameLength;
+        }
+        return frames;
+    }
+
+    /**
+     * @return the number of sequences in the cache
+     */
+    public int getSequenceCount() {
+        return strandLengths.size();
+    }
+
+    /**
+     * @param sequence the (base 0) index of the sequence within the reference
+     * @return the length of the untranslated sequence
+     */
+    public int getStrandLength(int sequence) {
+        return strandLengths.get(sequence);
+    }
+
+    /**
+     * @return true if the frames are being written, rather than read
+     */
+    public boolean isWriting() {
+        return writing;
+    }
+
+    /**
+     * close the file.  if the frames were being written, the index and the
+     * header are written first, so the file is only usable once it is closed
+     */
+    public void close() throws IOException {
+        try {
+            if(writing) {
+                int sequenceCount = strandLengths.size();
+                ByteBuffer index = ByteBuffer.allocate(12 * sequenceCount);
+                for(int sequence = 0; sequence < sequenceCount; sequence++) {
+                    index.putLong(offsets[sequence]);
+                    index.putInt(strandLengths.get(sequence));
+                }
+                index.flip();
+                long indexPosition = position;
+                while(index.hasRemaining()) {
+                    position += channel.write(index, position);
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(fileHeaderSize);
+                header.putInt(fileMagic);
+                header.putInt(fileVersion);
+                header.putInt(sequenceCount);
+                header.putLong(referenceChecksum);
+                header.putLong(codeChecksum);
+                header.putLong(indexPosition);
+                header.rewind();
+                channel.write(header, 0);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * close the file without finishing it, e.g. after an error.  a file which
+     * was being written is deleted, so it is never mistaken for a whole cache
+     */
+    public void discard() throws IOException {
+        randomAccessFile.close();
+        if(writing) {
+            new File(file).delete();
+        }
+    }
+
+    /**
+     * summarize the contents of the reference file, so that a cache is only
+     * used for the same reference
+     * @param referenceFile the path of the reference
+     * @return a checksum of the reference file
+     */
+    protected static long getReferenceChecksum(String referenceFile) throws IOException {
+        CRC32 crc = new CRC32();
+        long length = 0;
+        InputStream input = new FileInputStream(referenceFile);
+        try {
+            byte[] buffer = new byte[1 << 16];
+            for(int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                crc.update(buffer, 0, read);
+                length += read;
+            }
+        } finally {
+            input.close();
+        }
+        return (crc.getValue() << 32) ^ length;
+    }
+
+    /**
+     * summarize the compiled codon table, so that a cache is only used for
+     * translations with the same codon table
+     * @param translator the translator with the codon table
+     * @return a checksum of the codon table
+     */
+    protected static long getCodeChecksum(Translator translator) {
+        CRC32 crc = new CRC32();
+        crc.update(translator.aminoAcidBytes);
+        return crc.getValue();
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc="Mapped Sequence">
+    /**
+     * a translated frame mapped from the file, read in place
+     */
+    protected static class MappedSequence implements CharSequence {
+
+        protected ByteBuffer buffer;
+
+        protected MappedSequence(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int length() {
+            return buffer.limit();
+        }
+
+        public char charAt(int index) {
+            return (char)(buffer.get(index) & 0xFF);
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            char[] characters = new char[end - start];
+            for(int i = start; i < end; i++) {
+                characters[i - start] = charAt(i);
+            }
+            return new String(characters);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }// </editor-fold>
+}
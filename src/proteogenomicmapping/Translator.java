@@ -1,7 +1,10 @@
 package proteogenomicmapping;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Complement and translate between DNA and amino acids
@@ -10,16 +13,75 @@ import java.util.Map;
  */
 public class Translator {
 
+    /**
+     * the nucleotides, in the order of their bits in a nucleotide mask
+     */
+    public static final String nucleotides = "ACGT";
+
+    /**
+     * the IUPAC codes for the nucleotides and the ambiguous nucleotides, in
+     * the order of their masks (A = 1, C = 2, G = 4, T = 8, R = A | G ...),
+     * starting with mask 1
+     */
+    public static final String iupacCodes = "ACMGRSVTWYHKDBN";
+
+    /**
+     * the number of codon indices, 4 bits for each nucleotide of a codon
+     */
+    public static final int codonIndexCount = 1 << 12;
+
+    /**
+     * the classes of codons marked by markCodons
+     */
+    public static final byte startCodon = 1;
+    public static final byte stopCodon = 2;
+
     /**
      * a mapping between a codon and an amino acid
      */
     Map<String, String> codonTable;
+
+    /**
+     * the mask of the nucleotides each character may be (see iupacCodes),
+     * or 0 if it is not a nucleotide
+     */
+    byte[] nucleotideMasks;
+
+    /**
+     * the mask of the complements of the nucleotides of each mask
+     */
+    byte[] complementMasks;
+
+    /**
+     * the codon table compiled for the codon index, which is the masks of the
+     * three nucleotides of a codon, (first << 8) | (second << 4) | third.
+     * an ambiguous codon translates to the amino acid all of its codons
+     * translate to, or 'X' if they do not agree
+     */
+    char[] aminoAcids;
+
+    /**
+     * the same as aminoAcids, as ASCII bytes, for translating into a byte array
+     */
+    byte[] aminoAcidBytes;
+
+    /**
+     * the classes (startCodon, stopCodon) of each codon, by codon index.
+     * an ambiguous codon has a class only if all of its codons have it
+     */
+    byte[] codonClasses;
     
     /**
      * a mapping between an amino acid and its complement
      */
     Map<String, String> complementTable;
 
+    /**
+     * the (upper-case) complement of each nucleotide byte, 'N' for a
+     * character which has no complement
+     */
+    byte[] complements;
+
     /**
      * create a translator using default mappings
      */
@@ -33,8 +95,91 @@ public class Translator {
      * @param codonTable the mapping between codons and amino acids
      */
     public Translator(Map<String, String> codonTable) {
+        this(codonTable, Collections.<String>emptySet(), Collections.<String>emptySet());
+    }
+
+    /**
+     * create a translator using the given mapping between codons and amino
+     * acids, which can also mark the start and stop codons (see markCodons)
+     * @param codonTable the mapping between codons and amino acids
+     * @param startCodons the start codons
+     * @param stopCodons the stop codons
+     */
+    public Translator(Map<String, String> codonTable, Set<String> startCodons, Set<String> stopCodons) {
         this.codonTable = codonTable;
         populateComplementTable();
+        compileCodonTable(startCodons, stopCodons);
+    }
+
+    /**
+     * compile the codon table into tables indexed by the codon index, so that
+     * translating a codon does not need a substring or a lookup in the map.
+     * every ambiguous codon is expanded here, once, so translating one is a
+     * single lookup as well
+     */
+    protected void compileCodonTable(Set<String> startCodons, Set<String> stopCodons) {
+        // one entry for every byte, so a byte never needs a bounds check
+        nucleotideMasks = new byte[256];
+        for(int mask = 1; mask <= iupacCodes.length(); mask++) {
+            nucleotideMasks[iupacCodes.charAt(mask - 1)] = (byte)mask;
+        }
+        nucleotideMasks['U'] = nucleotideMasks['T'];
+
+        // the complement of a mask has the bits in the reverse order
+        complementMasks = new byte[16];
+        for(int mask = 0; mask < 16; mask++) {
+            complementMasks[mask] = (byte)(((mask & 1) << 3) | ((mask & 2) << 1) | ((mask & 4) >> 1) | ((mask & 8) >> 3));
+        }
+
+        aminoAcids = new char[codonIndexCount];
+        aminoAcidBytes = new byte[codonIndexCount];
+        codonClasses = new byte[codonIndexCount];
+        for(int index = 0; index < codonIndexCount; index++) {
+            int first = index >> 8;
+            int second = (index >> 4) & 15;
+            int third = index & 15;
+
+            // translate every codon the masks could be
+            char aminoAcid = 0;
+            byte codonClass = startCodon | stopCodon;
+            for(int i = 0; i < 4; i++) {
+                for(int j = 0; j < 4; j++) {
+                    for(int k = 0; k < 4; k++) {
+                        if((first & (1 << i)) == 0 || (second & (1 << j)) == 0 || (third & (1 << k)) == 0) {
+                            continue;
+                        }
+                        String codon = "" + nucleotides.charAt(i) + nucleotides.charAt(j) + nucleotides.charAt(k);
+                        char codonAminoAcid = translate(codon).charAt(0);
+                        aminoAcid = aminoAcid == 0 || aminoAcid == codonAminoAcid ? codonAminoAcid : 'X';
+                        if(!startCodons.contains(codon)) {
+                            codonClass &= ~startCodon;
+                        }
+                        if(!stopCodons.contains(codon)) {
+                            codonClass &= ~stopCodon;
+                        }
+                    }
+                }
+            }
+
+            // a mask of 0 is not a nucleotide, so the codon has no translations
+            if(aminoAcid == 0) {
+                aminoAcid = 'X';
+                codonClass = 0;
+            }
+            aminoAcids[index] = aminoAcid;
+            aminoAcidBytes[index] = (byte)aminoAcid;
+            codonClasses[index] = codonClass;
+        }
+    }
+
+    /**
+     * @return the mask of the nucleotides the character may be, or 0 if it is not a nucleotide
+     */
+    protected final int getNucleotideMask(char nucleotide) {
+        if(nucleotide >= nucleotideMasks.length) {
+            return 0;
+        }
+        return nucleotideMasks[nucleotide];
     }
 
     /**
@@ -46,14 +191,128 @@ public class Translator {
     public String translateSequence(String sequence) {
         int l = sequence.length();
 	int l_3 = l / 3;
-        StringBuffer sb = new StringBuffer();
-        sb.setLength(l_3);
+        char[] protein = new char[l_3];
 
+        // combine the masks of each codon into its codon index,
+        // any character which is not a nucleotide makes the codon an 'X'
 	for(int i = 0; i < l - 2; i+= 3) {
-            sb.setCharAt(i / 3, translate(sequence.substring(i, i + 3)).charAt(0));
+            int first = getNucleotideMask(sequence.charAt(i));
+            int second = getNucleotideMask(sequence.charAt(i + 1));
+            int third = getNucleotideMask(sequence.charAt(i + 2));
+            protein[i / 3] = aminoAcids[(first << 8) | (second << 4) | third];
 	}
 
-        return sb.toString();
+        return new String(protein);
+    }
+
+    /**
+     * translate the DNA (as ASCII bytes) from start to end into the given
+     * protein buffer, without allocating anything.  the same as
+     * translateSequence: a codon which could be more than one amino acid
+     * is an 'X', and the last partial codon is dropped
+     * NOTE sequence needs to be all upper case
+     * @param sequence the DNA sequence
+     * @param start the position of the first nucleotide to translate
+     * @param end the position after the last nucleotide to translate
+     * @param protein receives the amino acids, it must hold at least (end - start) / 3
+     * @return the number of amino acids translated into protein
+     */
+    public int translate(byte[] sequence, int start, int end, byte[] protein) {
+        int length = (end - start) / 3;
+        for(int i = 0, j = start; i < length; i++, j += 3) {
+            int first = nucleotideMasks[sequence[j] & 0xFF];
+            int second = nucleotideMasks[sequence[j + 1] & 0xFF];
+            int third = nucleotideMasks[sequence[j + 2] & 0xFF];
+            protein[i] = aminoAcidBytes[(first << 8) | (second << 4) | third];
+        }
+        return length;
+    }
+
+    /**
+     * translate all six reading frames of the DNA (as ASCII bytes) in a single
+     * pass.  each codon of the forward strand is translated into the forward
+     * frame it starts in, and its reverse complement (found from the same
+     * nucleotides read backwards and complemented) into the reverse frame
+     * it belongs to, so the reverse complement of the sequence is never made.
+     * the frames are the same as translating getReadingFrame of each frame
+     * NOTE sequence needs to be all upper case
+     * @param sequence the DNA sequence
+     * @param length the number of nucleotides in sequence
+     * @param frames receives the translations of F1, F2, F3, R1, R2 and R3,
+     *          the buffers are reused if they are long enough
+     */
+    public void translateFrames(byte[] sequence, int length, ByteSequence[] frames) {
+        byte[][] buffers = new byte[6][];
+        for(int frame = 0; frame < 3; frame++) {
+            int frameLength = Math.max(length - frame, 0) / 3;
+            buffers[frame] = frames[frame].getBuffer(frameLength);
+            buffers[frame + 3] = frames[frame + 3].getBuffer(frameLength);
+            frames[frame].setLength(frameLength);
+            frames[frame + 3].setLength(frameLength);
+        }
+        if(length < 3) {
+            return;
+        }
+
+        // the codon starting at p is in forward frame p % 3, and its reverse
+        // complement starts at length - 3 - p of the reverse strand
+        int forwardFrame = 0;
+        int forwardIndex = 0;
+        int reverseFrame = (length - 3) % 3;
+        int reverseIndex = (length - 3) / 3;
+
+        // the reverse codon index is made of the complements of the masks
+        // in the opposite order
+        int forward = 0;
+        int reverse = 0;
+        for(int i = 0; i < length; i++) {
+            int mask = nucleotideMasks[sequence[i] & 0xFF];
+            forward = ((forward << 4) | mask) & (codonIndexCount - 1);
+            reverse = (reverse >> 4) | (complementMasks[mask] << 8);
+            if(i < 2) {
+                continue;
+            }
+
+            buffers[forwardFrame][forwardIndex] = aminoAcidBytes[forward];
+            buffers[reverseFrame + 3][reverseIndex] = aminoAcidBytes[reverse];
+
+            if(++forwardFrame == 3) {
+                forwardFrame = 0;
+                forwardIndex++;
+            }
+            if(reverseFrame-- == 0) {
+                reverseFrame = 2;
+                reverseIndex--;
+            }
+        }
+    }
+
+    /**
+     * mark the start and stop codons at every position of the sequence, in
+     * all three frames, in a single pass.  the codon index of each position is
+     * found from the one before it by shifting in the mask of the next nucleotide
+     * @param sequence the DNA sequence
+     * @param marks an array to reuse for the marks, if it is long enough
+     * @return the classes (startCodon, stopCodon) of the codon starting at each
+     *          position, 0 for a codon which runs past the end of the sequence
+     */
+    public byte[] markCodons(CharSequence sequence, byte[] marks) {
+        int length = sequence.length();
+        if(marks == null || marks.length < length) {
+            marks = new byte[length];
+        }
+
+        int index = 0;
+        for(int i = 0; i < length; i++) {
+            index = ((index << 4) | getNucleotideMask(sequence.charAt(i))) & (codonIndexCount - 1);
+            if(i >= 2) {
+                marks[i - 2] = codonClasses[index];
+            }
+        }
+        for(int i = Math.max(0, length - 2); i < length; i++) {
+            marks[i] = 0;
+        }
+        return marks;
     }
 
     /**
@@ -108,6 +367,22 @@ public class Translator {
         complementTable.put("t", "A");
         complementTable.put("N", "N");
         complementTable.put("n", "N");
+
+        // the ambiguous (IUPAC) nucleotides complement to the ambiguous
+        // nucleotide of the complements
+        String ambiguous = "RYKMSWBVDH";
+        String ambiguousComplements = "YRMKSWVBHD";
+        for(int i = 0; i < ambiguous.length(); i++) {
+            String complement = ambiguousComplements.substring(i, i + 1);
+            complementTable.put(ambiguous.substring(i, i + 1), complement);
+            complementTable.put(ambiguous.substring(i, i + 1).toLowerCase(), complement);
+        }
+
+        complements = new byte[256];
+        Arrays.fill(complements, (byte)'N');
+        for(Map.Entry<String, String> entry : complementTable.entrySet()) {
+            complements[entry.getKey().charAt(0)] = (byte)entry.getValue().charAt(0);
+        }
     }
 
 
@@ -359,24 +634,33 @@ public class Translator {
     }
 
     /**
-     * use the translator to find the reverse complement of the given sequence
+     * return a reading frame of the given strand without copying it.  a
+     * reverse reading frame reads the strand backwards, complementing each
+     * nucleotide as it is read, and is the same as getReadingFrame
+     * @param strand the forward strand, which needs to be all upper case
+     * @param readingFrame the reading frame, "F1", "F2", "F3", "R1", "R2" or "R3"
+     * @return a view of the reading frame of strand, which changes with the strand
+     */
+    public CharSequence getReadingFrame(ByteSequence strand, String readingFrame) {
+        int offset = readingFrame.charAt(1) - '1';
+        return new StrandSequence(strand.getBytes(), strand.length(), offset,
+                readingFrame.startsWith("R") ? complements : null);
+    }
+
+    /**
+     * use the translator to find the reverse complement of the given sequence.
+     * a character with no complement is complemented to N
      * @param sequence the sequence of which to find the reverse complement
      * @return the reverse complement string of sequence
      */
     public String getReverseComplement(String sequence) {
-        StringBuilder reverseComplement = new StringBuilder();
-        
-        // first, just reverse the sequence
-        StringBuilder reverseSequence = new StringBuilder(sequence);
-        reverseSequence.reverse();
-        
-        // then populate the reverse complement
-        for(int i = 0; i < reverseSequence.length(); i++) {
-            String reverseCharacter = complement(reverseSequence.substring(i, i + 1));
-            reverseComplement.append(reverseCharacter);
+        int length = sequence.length();
+        char[] reverseComplement = new char[length];
+        for(int i = 0; i < length; i++) {
+            char nucleotide = sequence.charAt(length - 1 - i);
+            reverseComplement[i] = nucleotide < complements.length ? (char)complements[nucleotide] : 'N';
         }
-        
-        return reverseComplement.toString();
+        return new String(reverseComplement);
     }
 
 }
@@ -0,0 +1,138 @@
+package proteogenomicmapping;
+
+import codetable.CodeTable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test to ensure the ascii writer writes the same text as PrintWriter
+ * @author Brandon
+ */
+public class AsciiWriterTest {
+
+    protected static File getFile() throws IOException {
+        File file = File.createTempFile("ascii", ".txt");
+        file.deleteOnExit();
+        return file;
+    }
+
+    protected static byte[] readBytes(File file) throws IOException {
+        byte[] bytes = new byte[(int)file.length()];
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            input.readFully(bytes);
+        } finally {
+            input.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Test that numbers, characters and text are printed as PrintWriter prints them
+     */
+    @Test
+    public void testPrint() throws IOException {
+        System.out.println("print");
+        StringWriter expected = new StringWriter();
+        PrintWriter printWriter = new PrintWriter(expected);
+        File file = getFile();
+        AsciiWriter instance = new AsciiWriter(file.getPath());
+
+        long[] numbers = { 0, 7, -7, 10, 99, 1000000007L, -2147483648L, Long.MAX_VALUE, Long.MIN_VALUE };
+        for(long number : numbers) {
+            printWriter.print(number);
+            printWriter.print('\t');
+            instance.printField(number);
+        }
+        printWriter.print(0.8125);
+        instance.print(0.8125);
+        printWriter.println();
+        instance.println();
+        printWriter.println("peptide-1; Name=\u00e9t\u00e9");
+        instance.println("peptide-1; Name=\u00e9t\u00e9");
+        printWriter.flush();
+        instance.close();
+
+        // a file written by PrintWriter has the text in the default encoding
+        assertArrayEquals(expected.toString().getBytes(), readBytes(file));
+    }
+
+    /**
+     * Test that printing a translation is the same as printing translateSequence
+     */
+    @Test
+    public void testPrintTranslation() throws Exception {
+        System.out.println("printTranslation");
+        CodeTable table = CodeTable.getCodeTable("genetic_code_table.txt", "Standard");
+        Translator translator = new Translator(table.getCodonTable(), table.getStartCodons(), table.getEndCodons());
+        String sequence = "ATGAATTCGGCCGTGGCGAACGGCGAACGGGAATGANNRTAGGT";
+
+        File file = getFile();
+        AsciiWriter instance = new AsciiWriter(file.getPath());
+        instance.printTranslation(translator, sequence);
+        instance.close();
+        assertEquals(translator.translateSequence(sequence), new String(readBytes(file)));
+    }
+
+    /**
+     * Test that printing part of a reading frame is the same as printing its subsequence
+     */
+    @Test
+    public void testPrintPart() throws Exception {
+        System.out.println("print part");
+        CodeTable table = CodeTable.getCodeTable("genetic_code_table.txt", "Standard");
+        Translator translator = new Translator(table.getCodonTable(), table.getStartCodons(), table.getEndCodons());
+        ByteSequence strand = new ByteSequence();
+        strand.set("ATGAATTCGGCCGTGGCGAACGGCGAACGGGAATGANNRTAGGT");
+
+        StringBuilder expected = new StringBuilder();
+        File file = getFile();
+        AsciiWriter instance = new AsciiWriter(file.getPath());
+        String[] readingFrames = { "F1", "F2", "F3", "R1", "R2", "R3" };
+        for(String readingFrame : readingFrames) {
+            CharSequence frame = translator.getReadingFrame(strand, readingFrame);
+            expected.append(frame.subSequence(4, 31)).append(translator.translateSequence(frame.subSequence(4, 31).toString()));
+            instance.print(frame, 4, 31);
+            instance.printTranslation(translator, frame, 4, 31);
+        }
+        expected.append(strand.subSequence(2, 40));
+        instance.print(strand, 2, 40);
+        instance.close();
+        assertEquals(expected.toString(), new String(readBytes(file)));
+    }
+
+    /**
+     * Test that text longer than the buffer is written to the file whole
+     */
+    @Test
+    public void testWriteFile() throws IOException {
+        System.out.println("write file");
+        File file = getFile();
+        StringBuilder line = new StringBuilder();
+        for(int i = 0; i < 3 * AsciiWriter.bufferSize; i++) {
+            line.append("ACGT".charAt(i % 4));
+        }
+
+        AsciiWriter instance = new AsciiWriter(file.getPath());
+        for(int i = 0; i < 1000; i++) {
+            instance.printField(i);
+        }
+        instance.println();
+        instance.println(line);
+        instance.close();
+        assertFalse(instance.checkError());
+
+        List<String> lines = FileReading.getLinesList(file.getPath());
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).startsWith("0\t1\t2\t"));
+        assertTrue(lines.get(0).endsWith("\t999\t"));
+        assertEquals(line.toString(), lines.get(1));
+    }
+}
@@ -0,0 +1,51 @@
+package proteogenomicmapping;
+
+import codetable.CodeTable;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test to ensure the codon index finds the same codons as stepping
+ * through the codon marks one codon at a time
+ * @author Brandon
+ */
+public class CodonIndexTest {
+
+    /**
+     * Test of previous and next, of class CodonIndex.
+     */
+    @Test
+    public void testPreviousNext() throws Exception {
+        System.out.println("previous/next");
+        CodeTable table = CodeTable.getCodeTable("genetic_code_table.txt", "Standard");
+        Translator translator = new Translator(table.getCodonTable(), table.getStartCodons(), table.getEndCodons());
+        Random random = new Random(25);
+        StringBuilder sequence = new StringBuilder();
+        for(int i = 0; i < 2000; i++) {
+            sequence.append("ACGTTAGN".charAt(random.nextInt(8)));
+        }
+        byte[] marks = translator.markCodons(sequence, null);
+
+        CodonIndex instance = new CodonIndex();
+        // index a longer reference first, to check the lists are emptied
+        instance.index(translator.markCodons(sequence.toString() + sequence, null), 2 * sequence.length());
+        instance.index(marks, sequence.length());
+
+        byte[] codonClasses = { Translator.startCodon, Translator.stopCodon };
+        for(byte codonClass : codonClasses) {
+            for(int position = 0; position < sequence.length(); position++) {
+                int previous = position;
+                while(previous >= 0 && (marks[previous] & codonClass) == 0) {
+                    previous -= 3;
+                }
+                int next = position;
+                while(next < sequence.length() && (marks[next] & codonClass) == 0) {
+                    next += 3;
+                }
+                assertEquals(Math.max(previous, -1), instance.previous(codonClass, position));
+                assertEquals(next < sequence.length() ? next : -1, instance.next(codonClass, position));
+            }
+        }
+    }
+}
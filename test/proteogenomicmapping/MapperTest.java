@@ -9,8 +9,11 @@ import genesplicerparser.GeneSplicerParser;
 import proteogenomicmapping.Mapper.MapperMode;
 import java.util.List;
 import codetable.CodeTable;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -170,6 +173,166 @@ public class MapperTest {
         assertEquals(expResult, result);
     }
 
+    /**
+     * Test of searchFrames method, of class Mapper.
+     *
+     * searching the six reading frames as they are translated has to find
+     * the same matches as translating each reading frame and searching it,
+     * for every length of reference, including a character which is not a nucleotide
+     */
+    @Test
+    public void testSearchFrames() {
+        System.out.println("searchFrames");
+        String[] readingFrames = { "F1", "F2", "F3", "R1", "R2", "R3" };
+        String sequence = "TAGATTGAATGAAGGGTGACGATGAATTCGGCCGTGGCGAACGGCGAACGGGAATGATCTAGGTAT"
+                + "GCCGTTCGCCACGGCNGAATTCATCGTCACCC";
+        ByteSequence strand = new ByteSequence();
+        int[] found = new int[2];
+        for(int length = 0; length <= sequence.length(); length++) {
+            String reference = sequence.substring(0, length);
+            strand.set(reference);
+            instance.searchFrames(strand);
+            for(int frame = 0; frame < readingFrames.length; frame++) {
+                String peptide = instance.translator.getReadingFrame(reference, readingFrames[frame]);
+                peptide = instance.translator.translateSequence(peptide);
+                IntList ends = new IntList();
+                IntList matches = new IntList();
+                instance.stateMachine.search(peptide, Math.max(peptide.length() - 1, 0), ends, matches);
+                assertEquals(matches.size(), instance.frameMatches[frame].size());
+                for(int match = 0; match < matches.size(); match++) {
+                    assertEquals(ends.get(match), instance.frameEnds[frame].get(match));
+                    assertEquals(matches.get(match), instance.frameMatches[frame].get(match));
+                }
+                if(length == sequence.length()) {
+                    found[frame / 3] += matches.size();
+                }
+            }
+        }
+
+        // the peptide is on both strands
+        assertTrue(found[0] > 0);
+        assertTrue(found[1] > 0);
+    }
+
+    /**
+     * Test of mapWindows method, of class Mapper.
+     *
+     * mapping the reference in windows has to write the same output as mapping
+     * each sequence whole, for matches on both strands, across the windows
+     */
+    @Test
+    public void testMapWindows() throws FileNotFoundException, IOException {
+        System.out.println("mapWindows");
+        File reference = File.createTempFile("reference", ".fasta");
+        reference.deleteOnExit();
+        PrintWriter writer = new PrintWriter(reference);
+        writer.println(">first");
+        writer.println("TAGATTGAATGAAGGGTGACGATGAATTCGGCCGTGGCGAACGGCGAACGGGAATGATCTAGGTAT");
+        writer.println("gccgttcgccacggcngaattcatcgtcacccGTGGCGAACGGCTAG");
+        writer.println(">second");
+        writer.println("ATGGTGGCGAACGGCTAA");
+        writer.close();
+        instance.referenceFilename = reference.getPath();
+
+        instance.map();
+        List<String> expected = FileReading.getLinesList(instance.outputFilename);
+        List<String> expectedGff3 = FileReading.getLinesList(instance.outputGff3Filename);
+        assertTrue(expected.size() > 4);
+
+        instance.setWindowLength(9);
+        instance.map();
+        assertEquals(expected, FileReading.getLinesList(instance.outputFilename));
+        assertEquals(expectedGff3, FileReading.getLinesList(instance.outputGff3Filename));
+    }
+
+    /**
+     * Test of addMatchSink method, of class Mapper.
+     *
+     * a sink has to be handed every match written to the output file,
+     * in the same order, and be closed after the last one
+     */
+    @Test
+    public void testMatchSink() throws FileNotFoundException, IOException {
+        System.out.println("addMatchSink");
+        final List<PeptideMatch> matches = new ArrayList<PeptideMatch>();
+        final boolean[] closed = new boolean[1];
+        instance.addMatchSink(new MatchSink() {
+            public void match(PeptideMatch match) {
+                assertFalse(closed[0]);
+                matches.add(match);
+            }
+
+            public void close() {
+                closed[0] = true;
+            }
+        });
+        instance.setThreads(2);
+        instance.map();
+
+        List<String> lines = FileReading.getLinesList(instance.outputFilename);
+        assertTrue(closed[0]);
+        assertEquals(lines.size() - 1, matches.size());
+        for(int i = 0; i < matches.size(); i++) {
+            PeptideMatch match = matches.get(i);
+            String[] fields = lines.get(i + 1).split("\t");
+            assertEquals(instance.peptides.get(match.getPeptideIndex() - 1).getId(), fields[0]);
+            assertEquals(match.getSequenceName(), fields[2]);
+            assertEquals(String.valueOf(match.getStartRTP()), fields[3]);
+            assertEquals(match.getReadingFrame(), fields[6]);
+            assertEquals(match.getEpst(), fields[10]);
+            assertEquals(match.getStartCodon(), fields[13]);
+        }
+    }
+
+    /**
+     * Test that the sinks are closed when mapping fails
+     */
+    @Test
+    public void testMatchSinkFailure() throws FileNotFoundException, IOException {
+        System.out.println("addMatchSink, failure");
+        final boolean[] closed = new boolean[1];
+        instance.addMatchSink(new MatchSink() {
+            public void match(PeptideMatch match) {
+                throw new IllegalStateException("sink failed");
+            }
+
+            public void close() {
+                closed[0] = true;
+            }
+        });
+        try {
+            instance.map();
+            fail("map has to report the error of the sink");
+        } catch (IOException ex) {
+        } catch (RuntimeException ex) {
+        }
+        assertTrue(closed[0]);
+        assertNull(instance.outputFiles);
+    }
+
+    /**
+     * Test that a translation cache which can not be written fails the
+     * mapping before the output files of the last run are emptied
+     */
+    @Test
+    public void testMapCacheFailure() throws FileNotFoundException, IOException {
+        System.out.println("map, cache failure");
+        PrintWriter writer = new PrintWriter(instance.outputFilename);
+        writer.println("last run");
+        writer.close();
+
+        instance.setThreads(3);
+        instance.setTranslationCache(new File(instance.outputFilename, "missing/cache.bin").getPath());
+        try {
+            instance.map();
+            fail("map has to report the cache which can not be written");
+        } catch (IOException ex) {
+        }
+        assertNull(instance.outputFiles);
+        assertNull(instance.chunkExecutor);
+        assertEquals("last run", FileReading.getLinesList(instance.outputFilename).get(0));
+    }
+
     protected final Mapper getBaseMapper() throws FileNotFoundException, IOException, Exception {
 
         String peptideFilePath = "testPeptides.fasta";
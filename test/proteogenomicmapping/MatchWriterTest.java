@@ -0,0 +1,101 @@
+package proteogenomicmapping;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test to ensure the match writer hands the matches to its sinks in order,
+ * and fails rather than waiting forever when a sink fails
+ * @author Brandon
+ */
+public class MatchWriterTest {
+
+    protected static PeptideMatch getMatch(int peptideIndex) {
+        return new PeptideMatch(peptideIndex, "reference", "F1", "+", 1, 3, 1, 3, "ATG", 0, 3, 0, 3, 0);
+    }
+
+    /**
+     * Test of add and close, of class MatchWriter.
+     */
+    @Test
+    public void testAdd() throws IOException {
+        System.out.println("add");
+        final List<Integer> taken = new ArrayList<Integer>();
+        MatchWriter instance = new MatchWriter(Collections.<MatchSink>singletonList(new MatchSink() {
+            public void match(PeptideMatch match) {
+                taken.add(match.getPeptideIndex());
+            }
+
+            public void close() {
+            }
+        }), 2);
+        for(int i = 1; i <= 100; i++) {
+            instance.add(getMatch(i));
+        }
+        instance.close();
+
+        assertEquals(100, taken.size());
+        for(int i = 1; i <= 100; i++) {
+            assertEquals(i, taken.get(i - 1).intValue());
+        }
+    }
+
+    /**
+     * Test that an error of a sink fails the writer, and does not leave
+     * adding to the full queue waiting for a thread which has died
+     */
+    @Test(timeout = 10000)
+    public void testSinkError() {
+        System.out.println("sink error");
+        MatchWriter instance = new MatchWriter(Collections.<MatchSink>singletonList(new MatchSink() {
+            public void match(PeptideMatch match) {
+                throw new StackOverflowError();
+            }
+
+            public void close() {
+            }
+        }), 2);
+
+        // the matches after the error are dropped, or add fails
+        try {
+            for(int i = 1; i <= 100; i++) {
+                instance.add(getMatch(i));
+            }
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof StackOverflowError);
+        }
+        try {
+            instance.close();
+            fail("close has to report the error of the sink");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("StackOverflowError"));
+        }
+    }
+
+    /**
+     * Test that abort stops the writer after an error of a sink
+     */
+    @Test(timeout = 10000)
+    public void testAbort() {
+        System.out.println("abort");
+        MatchWriter instance = new MatchWriter(Collections.<MatchSink>singletonList(new MatchSink() {
+            public void match(PeptideMatch match) {
+                throw new OutOfMemoryError();
+            }
+
+            public void close() {
+            }
+        }), 1);
+        try {
+            instance.add(getMatch(1));
+            instance.add(getMatch(2));
+        } catch (RuntimeException ex) {
+        }
+        instance.abort();
+        assertFalse(instance.thread.isAlive());
+    }
+}
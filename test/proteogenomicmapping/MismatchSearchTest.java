@@ -0,0 +1,110 @@
+package proteogenomicmapping;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test to ensure the mismatch search finds every peptide which matches
+ * a protein sequence with at most one substitution, and only once
+ * @author Brandon
+ */
+public class MismatchSearchTest {
+
+    /**
+     * run the mismatch search over the protein sequence and report each match
+     * of every peptide of the matched group as "<end position>:<peptide index>:<mismatches>"
+     */
+    protected static List<String> search(MismatchSearch instance, String protein) {
+        IntList ends = new IntList();
+        IntList matches = new IntList();
+        IntList mismatches = new IntList();
+        instance.search(protein, protein.length(), ends, matches, mismatches);
+
+        List<String> result = new ArrayList<String>();
+        for(int i = 0; i < matches.size(); i++) {
+            if(i > 0) {
+                assertTrue(ends.get(i - 1) <= ends.get(i));
+            }
+            for(int peptide = matches.get(i); peptide != 0; peptide = instance.getGroups().getNextPeptide(peptide)) {
+                result.add(ends.get(i) + ":" + peptide + ":" + mismatches.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Test a substitution in either half of a peptide, an exact match,
+     * and a shared seed
+     */
+    @Test
+    public void testSearch() throws FileNotFoundException, IOException {
+        System.out.println("search");
+        List<BioSequence> peptides = StateMachineTest.getPeptides("VANGER", "VANKEY", "MNS");
+        MismatchSearch instance = new MismatchSearch(peptides, "");
+
+        assertEquals("[5:1:0]", search(instance, "VANGER").toString());
+        assertEquals("[5:1:1, 5:2:1]", search(instance, "VANGEY").toString());
+        assertEquals("[5:1:1, 8:3:1]", search(instance, "VAQGERMNT").toString());
+        assertEquals("[]", search(instance, "VAQGEYMQQ").toString());
+
+        // a substitution by an equivalent residue is not a mismatch
+        instance = new MismatchSearch(StateMachineTest.getPeptides("PEPTIDE"), "IL");
+        assertEquals("[6:1:0]", search(instance, "PEPTLDE").toString());
+        assertEquals("[6:1:1]", search(instance, "PEPTLDQ").toString());
+    }
+
+    /**
+     * Test that the mismatch search finds the same matches as comparing
+     * every peptide at every position, including identical peptides
+     */
+    @Test
+    public void testSearchAll() throws FileNotFoundException, IOException {
+        System.out.println("search all");
+        Random random = new Random(7);
+        String[] sequences = new String[100];
+        for(int i = 0; i < sequences.length; i++) {
+            StringBuilder sequence = new StringBuilder();
+            int length = 1 + random.nextInt(6);
+            for(int j = 0; j < length; j++) {
+                sequence.append("ACGT".charAt(random.nextInt(4)));
+            }
+            sequences[i] = sequence.toString();
+        }
+        StringBuilder protein = new StringBuilder();
+        for(int i = 0; i < 500; i++) {
+            protein.append("ACGTX".charAt(random.nextInt(5)));
+        }
+
+        List<String> expected = new ArrayList<String>();
+        for(int end = 0; end < protein.length(); end++) {
+            for(int length = 6; length > 0; length--) {
+                for(int i = 0; i < sequences.length; i++) {
+                    if(sequences[i].length() != length || end + 1 < length) {
+                        continue;
+                    }
+                    int mismatches = 0;
+                    for(int j = 0; j < length; j++) {
+                        if(sequences[i].charAt(j) != protein.charAt(end + 1 - length + j)) {
+                            mismatches++;
+                        }
+                    }
+                    if(mismatches == 0 || (mismatches == 1 && length > 1)) {
+                        expected.add(end + ":" + (i + 1) + ":" + mismatches);
+                    }
+                }
+            }
+        }
+
+        MismatchSearch instance = new MismatchSearch(StateMachineTest.getPeptides(sequences), "");
+        List<String> result = search(instance, protein.toString());
+        Collections.sort(expected);
+        Collections.sort(result);
+        assertEquals(expected, result);
+    }
+}
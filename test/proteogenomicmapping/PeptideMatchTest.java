@@ -0,0 +1,34 @@
+package proteogenomicmapping;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test to ensure a match keeps its rtp and epst when its reference is copied
+ * @author Brandon
+ */
+public class PeptideMatchTest {
+
+    /**
+     * Test of copy method, of class PeptideMatch.
+     */
+    @Test
+    public void testCopy() {
+        System.out.println("copy");
+        ByteSequence reference = new ByteSequence();
+        reference.set("CCCATGAAATTTGGGTAACCC");
+        PeptideMatch instance = new PeptideMatch(1, "reference", "F1", "+", 7, 15, 4, 18,
+                reference, 6, 15, 3, 18, 0);
+        PeptideMatch copy = instance.copy();
+
+        // reusing the reference does not change the copy
+        reference.set("NNNNNNNNNNNNNNNNNNNNN");
+        assertEquals(15, copy.getReference().length());
+        assertEquals("AAATTTGGG", copy.getReverseTranslatedPeptide());
+        assertEquals("ATGAAATTTGGGTAA", copy.getEpst());
+        assertEquals("ATG", copy.getStartCodon());
+        assertEquals(14, copy.getEpstLength());
+        assertEquals(instance.getStartRTP(), copy.getStartRTP());
+        assertEquals(instance.getEndEpst(), copy.getEndEpst());
+    }
+}
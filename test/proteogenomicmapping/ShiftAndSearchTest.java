@@ -0,0 +1,81 @@
+package proteogenomicmapping;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test to ensure the bit-parallel search finds the same matches,
+ * in the same order, as the state machine it is built from
+ * @author Brandon
+ */
+public class ShiftAndSearchTest {
+
+    /**
+     * compare the matches of the state machine and of the bit-parallel search
+     * for random peptides over a few residues
+     * @param peptideCount the number of peptides
+     * @param maxLength the longest peptide
+     * @param equivalences the classes of equivalent residues
+     * @return the number of words the peptides took
+     */
+    protected static int compare(int peptideCount, int maxLength, String equivalences, long seed) throws FileNotFoundException, IOException {
+        Random random = new Random(seed);
+        String[] sequences = new String[peptideCount];
+        for(int i = 0; i < sequences.length; i++) {
+            StringBuilder sequence = new StringBuilder();
+            int length = 1 + random.nextInt(maxLength);
+            for(int j = 0; j < length; j++) {
+                sequence.append("ACGIL".charAt(random.nextInt(5)));
+            }
+            sequences[i] = sequence.toString();
+        }
+        StringBuilder protein = new StringBuilder();
+        for(int i = 0; i < 3000; i++) {
+            protein.append("ACGILX*".charAt(random.nextInt(7)));
+        }
+
+        List<BioSequence> peptides = StateMachineTest.getPeptides(sequences);
+        StateMachine stateMachine = new StateMachine(peptides, equivalences);
+        IntList expectedEnds = new IntList();
+        IntList expectedMatches = new IntList();
+        stateMachine.search(protein, protein.length(), expectedEnds, expectedMatches);
+
+        ShiftAndSearch instance = new ShiftAndSearch(stateMachine);
+        IntList ends = new IntList();
+        IntList matches = new IntList();
+        instance.search(protein, protein.length(), ends, matches);
+
+        assertTrue(expectedMatches.size() > 0);
+        assertEquals(expectedMatches.size(), matches.size());
+        for(int i = 0; i < matches.size(); i++) {
+            assertEquals(expectedEnds.get(i), ends.get(i));
+            assertEquals(expectedMatches.get(i), matches.get(i));
+        }
+        return instance.wordCount;
+    }
+
+    /**
+     * Test peptides which fit in a single word
+     */
+    @Test
+    public void testSearchWord() throws FileNotFoundException, IOException {
+        System.out.println("search word");
+        assertEquals(1, compare(12, 5, "", 1));
+        assertEquals(1, compare(12, 5, "IL", 2));
+    }
+
+    /**
+     * Test peptides which take two words, and more
+     */
+    @Test
+    public void testSearch() throws FileNotFoundException, IOException {
+        System.out.println("search");
+        assertEquals(2, compare(24, 7, "", 5));
+        assertTrue(compare(60, 9, "", 3) > 2);
+        assertTrue(compare(60, 9, "IL", 4) > 2);
+    }
+}
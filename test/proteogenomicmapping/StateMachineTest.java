@@ -0,0 +1,267 @@
+package proteogenomicmapping;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test to ensure the state machine finds every peptide
+ * which occurs in a protein sequence
+ * @author Brandon
+ */
+public class StateMachineTest {
+
+    /**
+     * create a list of peptides with the given sequences.
+     * the ids are "peptide-1", "peptide-2", ... in the given order
+     */
+    protected static List<BioSequence> getPeptides(String... sequences) {
+        List<BioSequence> peptides = new ArrayList<BioSequence>();
+        for(int i = 0; i < sequences.length; i++) {
+            BioSequence peptide = new BioSequence("peptide-" + (i + 1));
+            peptide.append(sequences[i]);
+            peptides.add(peptide);
+        }
+        return peptides;
+    }
+
+    /**
+     * run the state machine over the protein sequence and report each match
+     * of every peptide of the matched group as "<end position>:<peptide index>"
+     */
+    protected static List<String> search(StateMachine instance, String protein) {
+        List<String> matches = new ArrayList<String>();
+        int state = 0;
+        for(int i = 0; i < protein.length(); i++) {
+            state = instance.getNextState(state, protein.charAt(i));
+            for(int match = instance.getFirstMatch(state); match != 0; match = instance.getOutputLink(match)) {
+                for(int peptide = instance.getPattern(match); peptide != 0; peptide = instance.getGroups().getNextPeptide(peptide)) {
+                    matches.add(i + ":" + peptide);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Test that the peptide indices refer to the original order of the
+     * peptides and that the caller's list is not reordered
+     */
+    @Test
+    public void testIndices() throws FileNotFoundException, IOException {
+        System.out.println("indices");
+        List<BioSequence> peptides = getPeptides("VANG", "AAK", "MNS");
+        StateMachine instance = new StateMachine(peptides);
+
+        assertEquals("VANG", peptides.get(0).toString());
+        assertEquals("[2:3, 7:1, 11:2]", search(instance, "MNSAVANGEAAK").toString());
+    }
+
+    /**
+     * Test that peptides which are suffixes of other peptides
+     * are reported in addition to the longer peptide
+     */
+    @Test
+    public void testOverlappingMatches() throws FileNotFoundException, IOException {
+        System.out.println("overlapping matches");
+        StateMachine instance = new StateMachine(getPeptides("VANG", "NG", "ANG", "GE", "XYZ"));
+
+        assertEquals("[4:1, 4:3, 4:2, 5:4]", search(instance, "AVANGE").toString());
+    }
+
+    /**
+     * Test that searching a sequence in consecutive chunks finds each match
+     * exactly once, in the same order as searching the whole sequence,
+     * including the matches across the seams of the chunks
+     */
+    @Test
+    public void testSearchChunks() throws FileNotFoundException, IOException {
+        System.out.println("search chunks");
+        Random random = new Random(11);
+        String[] sequences = new String[40];
+        for(int i = 0; i < sequences.length; i++) {
+            StringBuilder sequence = new StringBuilder();
+            int length = 1 + random.nextInt(7);
+            for(int j = 0; j < length; j++) {
+                sequence.append("ACGT".charAt(random.nextInt(4)));
+            }
+            sequences[i] = sequence.toString();
+        }
+        StringBuilder protein = new StringBuilder();
+        for(int i = 0; i < 2000; i++) {
+            protein.append("ACGTX".charAt(random.nextInt(5)));
+        }
+
+        StateMachine instance = new StateMachine(getPeptides(sequences));
+        IntList expectedEnds = new IntList();
+        IntList expectedMatches = new IntList();
+        instance.search(protein, protein.length(), expectedEnds, expectedMatches);
+        assertTrue(expectedMatches.size() > 0);
+
+        for(int chunkLength : new int[] { 1, 5, 64, 2000 }) {
+            IntList ends = new IntList();
+            IntList matches = new IntList();
+            for(int start = 0; start < protein.length(); start += chunkLength) {
+                instance.search(protein, start, Math.min(start + chunkLength, protein.length()), ends, matches);
+            }
+            assertEquals(expectedMatches.size(), matches.size());
+            for(int i = 0; i < matches.size(); i++) {
+                assertEquals(expectedEnds.get(i), ends.get(i));
+                assertEquals(expectedMatches.get(i), matches.get(i));
+            }
+        }
+    }
+
+    /**
+     * Test that a state machine read back from a file finds the same
+     * matches, and that it is not used for a different list of peptides
+     */
+    @Test
+    public void testWriteRead() throws FileNotFoundException, IOException {
+        System.out.println("write, read");
+        File file = File.createTempFile("statemachine", ".bin");
+        file.deleteOnExit();
+
+        List<BioSequence> peptides = getPeptides("VANG", "NG", "ANG", "GE", "XYZ");
+        StateMachine expected = new StateMachine(peptides);
+        expected.write(file.getPath());
+
+        StateMachine instance = StateMachine.read(file.getPath(), peptides, "");
+        assertNotNull(instance);
+        assertEquals(expected.getStateCount(), instance.getStateCount());
+        assertEquals(search(expected, "AVANGEXYZ"), search(instance, "AVANGEXYZ"));
+
+        assertNull(StateMachine.read(file.getPath(), getPeptides("VANG", "NG", "ANG", "GE", "XYW"), ""));
+        assertNull(StateMachine.read(file.getPath(), peptides, "IL"));
+    }
+
+    /**
+     * Test that the shards together find the same matches as a single
+     * state machine, and that identical peptides are not split between shards
+     */
+    @Test
+    public void testBuildShards() throws Exception {
+        System.out.println("buildShards");
+        List<BioSequence> peptides = getPeptides("VANG", "NG", "ANG", "GE", "XYZ", "GE", "AVA");
+        List<String> expected = search(new StateMachine(peptides), "AVANGEXYZ");
+        Collections.sort(expected);
+
+        List<StateMachine> shards = StateMachine.buildShards(peptides, 3, "");
+        assertEquals(3, shards.size());
+        List<String> result = new ArrayList<String>();
+        for(StateMachine shard : shards) {
+            result.addAll(search(shard, "AVANGEXYZ"));
+        }
+        Collections.sort(result);
+        assertEquals(expected, result);
+    }
+
+    /**
+     * Test that adding peptides to a state machine finds the same matches
+     * as building the state machine from all of the peptides, including
+     * when the new peptides have residues the machine has not seen
+     */
+    @Test
+    public void testAddPeptides() throws FileNotFoundException, IOException {
+        System.out.println("addPeptides");
+        Random random = new Random(42);
+        String[] sequences = new String[300];
+        for(int i = 0; i < sequences.length; i++) {
+            // only use a few residues, so there are a lot of overlapping peptides
+            String residues = i < 200 ? "ACGT" : "ACGTW";
+            StringBuilder sequence = new StringBuilder();
+            int length = 1 + random.nextInt(8);
+            for(int j = 0; j < length; j++) {
+                sequence.append(residues.charAt(random.nextInt(residues.length())));
+            }
+            sequences[i] = sequence.toString();
+        }
+        StringBuilder protein = new StringBuilder();
+        for(int i = 0; i < 5000; i++) {
+            protein.append("ACGTWX".charAt(random.nextInt(6)));
+        }
+
+        List<BioSequence> peptides = getPeptides(sequences);
+        StateMachine expected = new StateMachine(peptides);
+
+        StateMachine instance = new StateMachine(peptides.subList(0, 150));
+        instance.addPeptides(peptides.subList(0, 190));
+        instance.addPeptides(peptides);
+
+        assertEquals(expected.getStateCount(), instance.getStateCount());
+        assertEquals(search(expected, protein.toString()), search(instance, protein.toString()));
+    }
+
+    /**
+     * Test that equivalent residues match each other, and that peptides
+     * which are only equivalent share their states
+     */
+    @Test
+    public void testResidueClasses() throws FileNotFoundException, IOException {
+        System.out.println("residueClasses");
+        List<BioSequence> peptides = getPeptides("AIB", "AKC", "ALD", "NG");
+
+        StateMachine exact = new StateMachine(peptides);
+        assertEquals("[2:1, 8:4]", search(exact, "AIBALBANG").toString());
+
+        StateMachine instance = new StateMachine(peptides, "IL,ND");
+        // the root, A, I (or L), B, D, K and C, and N (or D) and G
+        assertEquals(9, instance.getStateCount());
+        assertEquals("[2:1, 5:1, 8:4]", search(instance, "AIBALBADG").toString());
+        assertEquals("[2:3, 5:3]", search(instance, "AIDALD").toString());
+    }
+
+    /**
+     * Test that a residue can only be in one class
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidResidueClasses() {
+        System.out.println("invalid residueClasses");
+        StateMachine.getResidueClasses("IL,LV");
+    }
+
+    /**
+     * Test that identical peptides share a final state, are all reported
+     * for a match, and that their counts and probabilities are combined
+     */
+    @Test
+    public void testGroups() throws FileNotFoundException, IOException {
+        System.out.println("groups");
+        List<BioSequence> peptides = getPeptides("VING", "AAK", "VING", "VIN", "VLNG");
+        peptides.get(0).setProbability(0.5);
+        peptides.get(2).setProbability(0.5);
+        peptides.get(2).setCount(3);
+        peptides.get(4).setProbability(0.25);
+
+        StateMachine instance = new StateMachine(peptides, "IL");
+        assertEquals(8, instance.getStateCount());
+        assertEquals("[2:4, 3:1, 3:3, 3:5, 6:2]", search(instance, "VLNGAAK").toString());
+
+        PeptideGroups groups = instance.getGroups();
+        assertEquals(5, groups.getCount(3));
+        assertEquals(0.8125, groups.getProbability(1), 1e-9);
+        assertEquals(1, groups.getCount(2));
+        assertEquals(1.0, groups.getProbability(2), 1e-9);
+
+        // the groups are kept in the cache file
+        File file = File.createTempFile("statemachine", ".bin");
+        file.deleteOnExit();
+        instance.write(file.getPath());
+        StateMachine read = StateMachine.read(file.getPath(), peptides, "IL");
+        assertEquals("[2:4, 3:1, 3:3, 3:5, 6:2]", search(read, "VLNGAAK").toString());
+        assertEquals(5, read.getGroups().getCount(5));
+
+        // and new identical peptides join the group
+        List<BioSequence> morePeptides = new ArrayList<BioSequence>(peptides);
+        morePeptides.addAll(getPeptides("AAK", "VING"));
+        read.addPeptides(morePeptides);
+        assertEquals("[2:4, 3:1, 3:3, 3:5, 3:7, 6:2, 6:6]", search(read, "VLNGAAK").toString());
+        assertEquals(6, read.getGroups().getCount(1));
+    }
+}
@@ -0,0 +1,67 @@
+package proteogenomicmapping;
+
+import codetable.CodeTable;
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test to ensure the translated reading frames read back from a translation
+ * cache are the ones written to it, and that a cache is only used for the
+ * same reference and codon table
+ * @author Brandon
+ */
+public class TranslationCacheTest {
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        System.out.println("write and read");
+        String referenceFile = "testReference.fasta";
+        String cacheFile = "testTranslationCache.bin";
+        CodeTable table = CodeTable.getCodeTable("genetic_code_table.txt", "Standard");
+        Translator translator = new Translator(table.getCodonTable(), table.getStartCodons(), table.getEndCodons());
+        List<BioSequence> references = FASTASequenceReader.readSequences(referenceFile);
+
+        ByteSequence[] translations = new ByteSequence[6];
+        for(int frame = 0; frame < translations.length; frame++) {
+            translations[frame] = new ByteSequence();
+        }
+        ByteSequence strand = new ByteSequence();
+
+        assertNull(TranslationCache.open(cacheFile, referenceFile, translator));
+        TranslationCache cache = TranslationCache.create(cacheFile, referenceFile, translator);
+        for(BioSequence reference : references) {
+            strand.set(reference.getSequence());
+            translator.translateFrames(strand.getBytes(), strand.length(), translations);
+            cache.write(translations, strand.length());
+        }
+        cache.close();
+
+        try {
+            cache = TranslationCache.open(cacheFile, referenceFile, translator);
+            assertNotNull(cache);
+            assertEquals(references.size(), cache.getSequenceCount());
+            for(int sequence = 0; sequence < references.size(); sequence++) {
+                strand.set(references.get(sequence).getSequence());
+                translator.translateFrames(strand.getBytes(), strand.length(), translations);
+                CharSequence[] frames = cache.getFrames(sequence);
+                assertEquals(strand.length(), cache.getStrandLength(sequence));
+                for(int frame = 0; frame < frames.length; frame++) {
+                    assertEquals(translations[frame].toString(), frames[frame].toString());
+                }
+            }
+            cache.close();
+
+            // a different codon table translates differently
+            Map<String, String> codonTable = new HashMap<String, String>(table.getCodonTable());
+            codonTable.put("TGA", "W");
+            Translator otherTranslator = new Translator(codonTable, table.getStartCodons(), table.getEndCodons());
+            assertNull(TranslationCache.open(cacheFile, referenceFile, otherTranslator));
+        } finally {
+            new File(cacheFile).delete();
+        }
+    }
+}
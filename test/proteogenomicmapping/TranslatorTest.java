@@ -23,7 +23,7 @@ public class TranslatorTest {
     public TranslatorTest() throws FileNotFoundException, IOException, Exception {
         CodeTable table = CodeTable.getCodeTable("genetic_code_table.txt", "Standard");
         Map<String, String> codonTable = table.getCodonTable();
-        instance = new Translator(codonTable);
+        instance = new Translator(codonTable, table.getStartCodons(), table.getEndCodons());
     }
 
     @BeforeClass
@@ -59,6 +59,95 @@ public class TranslatorTest {
         assertEquals(expResult, result);
     }
 
+    /**
+     * Test that a codon with a character which is not a nucleotide
+     * (including a lower case nucleotide) is translated to an X,
+     * and that the last partial codon is dropped
+     */
+    @Test
+    public void testTranslateSequenceAmbiguous() {
+        System.out.println("translateSequence, ambiguous");
+        assertEquals("RXXQ", instance.translateSequence("CGTTNCcaaCAACC"));
+    }
+
+    /**
+     * Test that an ambiguous (IUPAC) codon is translated to the amino acid
+     * all of the codons it could be translate to, and to an X otherwise,
+     * and that it is marked as a stop codon only if all of them are stop codons
+     */
+    @Test
+    public void testTranslateSequenceIupac() {
+        System.out.println("translateSequence, IUPAC");
+        assertEquals("GLFILR*XX", instance.translateSequence("GGNCTNTTYATHYTRMGRTRANNNTRG"));
+
+        byte[] marks = instance.markCodons("TRATRGATG", null);
+        assertEquals(Translator.stopCodon, marks[0]);
+        assertEquals(0, marks[3]);
+        assertEquals(Translator.startCodon, marks[6]);
+    }
+
+    /**
+     * Test that translating bytes into a buffer gives the same
+     * translation as translateSequence, from any offset
+     */
+    @Test
+    public void testTranslateBytes() {
+        System.out.println("translate bytes");
+        String sequence = "CGTTNCCAACAACCATGTAA";
+        byte[] bytes = sequence.getBytes();
+        byte[] protein = new byte[10];
+        for(int offset = 0; offset < 3; offset++) {
+            int length = instance.translate(bytes, offset, bytes.length, protein);
+            assertEquals(instance.translateSequence(sequence.substring(offset)), new String(protein, 0, length));
+        }
+    }
+
+    /**
+     * Test that translating the six reading frames at once gives the same
+     * translations as translating each reading frame, for every length
+     * of sequence, including one with a character which is not a nucleotide
+     */
+    @Test
+    public void testTranslateFrames() {
+        System.out.println("translateFrames");
+        String[] readingFrames = { "F1", "F2", "F3", "R1", "R2", "R3" };
+        String sequence = "CGTTGCCAACCCGGGCCACANCAAACGGTGTGGAAGGNCTRYTGTRA";
+        ByteSequence[] frames = new ByteSequence[6];
+        for(int frame = 0; frame < frames.length; frame++) {
+            frames[frame] = new ByteSequence(1);
+        }
+        for(int length = 0; length <= sequence.length(); length++) {
+            String prefix = sequence.substring(0, length);
+            instance.translateFrames(prefix.getBytes(), length, frames);
+            for(int frame = 0; frame < frames.length; frame++) {
+                String expResult = instance.translateSequence(instance.getReadingFrame(prefix, readingFrames[frame]));
+                assertEquals(expResult, frames[frame].toString());
+            }
+        }
+    }
+
+    /**
+     * Test of markCodons method, of class Translator.
+     * Every position is marked with the class of the codon starting there,
+     * so the codons of all three frames are marked at once.
+     */
+    @Test
+    public void testMarkCodons() {
+        System.out.println("markCodons");
+        String sequence = "ATGATAAGNTGATTAG";
+        byte[] marks = instance.markCodons(sequence, null);
+        StringBuilder result = new StringBuilder();
+        for(int i = 0; i < sequence.length(); i++) {
+            result.append(marks[i]);
+        }
+        // ATG, then TGA, TAA, TGA and TAG in any frame, but not the codons with the N
+        assertEquals("1200200002000200", result.toString());
+
+        // a longer array is reused
+        byte[] reused = new byte[20];
+        assertSame(reused, instance.markCodons(sequence, reused));
+    }
+
     /**
      * Test of translate method, of class Translator.
      * This method converts a single codon (a string of size 3)
@@ -152,6 +241,27 @@ public class TranslatorTest {
         assertEquals(expResult, result);
     }
 
+    /**
+     * Test that the reading frames read from the forward strand are the
+     * same as the reading frames made by getReadingFrame, including
+     * a character which has no complement
+     */
+    @Test
+    public void testGetReadingFrameView() {
+        System.out.println("getReadingFrame, view");
+        String sequence  = "CGTTGCCAACCCGGGCCACXCCAAACGGTGTGGAA";
+        ByteSequence strand = new ByteSequence();
+        strand.set(sequence);
+        String[] readingFrames = { "F1", "F2", "F3", "R1", "R2", "R3" };
+        for(String readingFrame : readingFrames) {
+            CharSequence result = instance.getReadingFrame(strand, readingFrame);
+            String expResult = instance.getReadingFrame(sequence, readingFrame);
+            assertEquals(expResult, result.toString());
+            assertEquals(expResult.length(), result.length());
+            assertEquals(expResult.substring(3, 9), result.subSequence(3, 9).toString());
+        }
+    }
+
     /**
      * Test of getReverseComplement of class Translator.
      * getReverseComplement() first reverses the sequence string.